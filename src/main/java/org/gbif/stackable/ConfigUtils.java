@@ -15,17 +15,31 @@
  */
 package org.gbif.stackable;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
 import io.kubernetes.client.openapi.models.V1ConfigMap;
 import io.kubernetes.client.util.KubeConfig;
+import lombok.Getter;
 import lombok.SneakyThrows;
 
 public class ConfigUtils {
@@ -47,6 +61,209 @@ public class ConfigUtils {
     }
   }
 
+  /**
+   * Error reading or parsing a document of a SparkCrd file. The documents that follow it in the
+   * same file are not read, the YAML parser can't be trusted after an error.
+   */
+  @Getter
+  public static class SparkCrdParseException extends RuntimeException {
+
+    private final Path file;
+
+    /** Position of the failed document in the file, starting at 1, 0 if it couldn't be opened. */
+    private final int document;
+
+    SparkCrdParseException(Path file, int document, Throwable cause) {
+      super(
+          (document > 0 ? "Error parsing document " + document + " of " : "Error reading ") + file,
+          cause);
+      this.file = file;
+      this.document = document;
+    }
+
+    /** The file and document that failed, e.g. manifests/batch.yaml#3. */
+    public String getSource() {
+      return file + "#" + document;
+    }
+  }
+
+  /**
+   * Lazily reads the SparkCrds of a multi-document YAML file or of all the *.yaml and *.yml files
+   * of a directory tree. Documents are parsed one at a time as the stream is consumed, the stream
+   * must be closed to release the open file. A document that can't be parsed throws a {@link
+   * SparkCrdParseException}.
+   */
+  public static Stream<SparkCrd> streamSparkCrds(Path path) {
+    return streamSparkCrds(path, false);
+  }
+
+  /**
+   * Like {@link #streamSparkCrds(Path)}, if parallel is true files are parsed concurrently, the
+   * documents of each file are still read sequentially.
+   */
+  public static Stream<SparkCrd> streamSparkCrds(Path path, boolean parallel) {
+    return streamSparkCrds(path, parallel, null);
+  }
+
+  /**
+   * Like {@link #streamSparkCrds(Path, boolean)}, documents that can't be parsed are passed to
+   * onError, which may be called concurrently for parallel streams, and the stream continues with
+   * the next file. If onError is null the parse errors are thrown.
+   */
+  @SneakyThrows
+  public static Stream<SparkCrd> streamSparkCrds(
+      Path path, boolean parallel, Consumer<SparkCrdParseException> onError) {
+    List<Path> files;
+    if (Files.isDirectory(path)) {
+      try (Stream<Path> tree = Files.walk(path)) {
+        files = tree.filter(ConfigUtils::isYamlFile).sorted().collect(Collectors.toList());
+      }
+    } else {
+      files = Collections.singletonList(path);
+    }
+    SparkCrdFilesSpliterator spliterator = new SparkCrdFilesSpliterator(files, onError);
+    return StreamSupport.stream(spliterator, parallel).onClose(spliterator::closeAll);
+  }
+
+  private static boolean isYamlFile(Path path) {
+    String fileName = path.getFileName().toString();
+    return Files.isRegularFile(path) && (fileName.endsWith(".yaml") || fileName.endsWith(".yml"));
+  }
+
+  /**
+   * Concatenates the documents of several files, each file is opened when the previous one is
+   * exhausted. Stream.flatMap is not used because on Java 8 it consumes the whole inner stream
+   * even if the outer one short-circuits (JDK-8075939). Splits are done by files, so files are
+   * parsed in parallel and the documents of a file sequentially.
+   */
+  private static class SparkCrdFilesSpliterator implements Spliterator<SparkCrd> {
+
+    private final List<Path> files;
+
+    private int index;
+
+    private final int end;
+
+    /** This spliterator and the ones split from it, closed with the stream. */
+    private final Queue<SparkCrdFilesSpliterator> splits;
+
+    /** Receives the parse errors, if null they are thrown. */
+    private final Consumer<SparkCrdParseException> onError;
+
+    private Path file;
+
+    /** Documents read from the current file. */
+    private int document;
+
+    private InputStream inputStream;
+
+    private MappingIterator<SparkCrd> documents;
+
+    private SparkCrdFilesSpliterator(List<Path> files, Consumer<SparkCrdParseException> onError) {
+      this(files, 0, files.size(), new ConcurrentLinkedQueue<>(), onError);
+    }
+
+    private SparkCrdFilesSpliterator(
+        List<Path> files,
+        int index,
+        int end,
+        Queue<SparkCrdFilesSpliterator> splits,
+        Consumer<SparkCrdParseException> onError) {
+      this.files = files;
+      this.index = index;
+      this.end = end;
+      this.splits = splits;
+      this.onError = onError;
+      splits.add(this);
+    }
+
+    @Override
+    public synchronized boolean tryAdvance(Consumer<? super SparkCrd> action) {
+      while (true) {
+        SparkCrd crd;
+        try {
+          if (documents == null) {
+            if (index >= end) {
+              return false;
+            }
+            open(files.get(index++));
+          }
+          if (!documents.hasNext()) {
+            close();
+            continue;
+          }
+          document++;
+          crd = documents.next();
+        } catch (Exception ex) {
+          SparkCrdParseException error = new SparkCrdParseException(file, document, ex);
+          close();
+          if (onError == null) {
+            throw error;
+          }
+          onError.accept(error);
+          continue;
+        }
+        // empty documents, e.g. a trailing ---, are read as null
+        if (crd != null) {
+          action.accept(crd);
+          return true;
+        }
+      }
+    }
+
+    @Override
+    public synchronized Spliterator<SparkCrd> trySplit() {
+      // a file being read is not split, the prefix must contain the files before the rest
+      if (documents != null || end - index < 2) {
+        return null;
+      }
+      int middle = index + (end - index) / 2;
+      SparkCrdFilesSpliterator prefix =
+          new SparkCrdFilesSpliterator(files, index, middle, splits, onError);
+      index = middle;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+      return Spliterator.ORDERED | Spliterator.NONNULL;
+    }
+
+    @SneakyThrows
+    private void open(Path file) {
+      this.file = file;
+      document = 0;
+      inputStream = Files.newInputStream(file);
+      documents = MAPPER.readerFor(SparkCrd.class).readValues(inputStream);
+    }
+
+    private synchronized void close() {
+      try {
+        if (documents != null) {
+          documents.close();
+        }
+        if (inputStream != null) {
+          inputStream.close();
+        }
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      } finally {
+        documents = null;
+        inputStream = null;
+      }
+    }
+
+    /** Closes the files left open, e.g. if the stream was not fully consumed. */
+    private void closeAll() {
+      splits.forEach(SparkCrdFilesSpliterator::close);
+    }
+  }
+
   @SneakyThrows
   public static KubeConfig loadKubeConfig(String kubeConfigFile) {
     try (Reader kubeConfigReader = Files.newBufferedReader(Paths.get(kubeConfigFile).toFile().toPath(), StandardCharsets.UTF_8)) {
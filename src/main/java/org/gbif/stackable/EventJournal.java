@@ -0,0 +1,527 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.io.Closeable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import static org.gbif.stackable.SparkAppUtils.getResourceVersion;
+import static org.gbif.stackable.SparkAppUtils.getUid;
+
+/**
+ * Append-only journal of watcher events stored in memory-mapped segment files.
+ *
+ * <p>Each record holds the event type, application name, phase, resourceVersion, uid, content hash
+ * and creation timestamp, plus the time it was received. Segments are fixed-size files named by
+ * their index, a new one is created when the current one is full. Positions returned by the
+ * journal can be used as checkpoints to replay events and {@link #getLastResourceVersion()} to
+ * resume a {@link StackableSparkWatcher}.
+ *
+ * <p>Each segment starts with a header storing its size, a journal can't be reopened with a
+ * different segment size since positions depend on it. Records are checksummed and their length
+ * is written last, so a record torn by a crash is discarded on recovery.
+ */
+@Slf4j
+public class EventJournal implements StackableSparkWatcher.EventsListener, Closeable {
+
+  private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  private static final long DEFAULT_FORCE_INTERVAL_MILLIS = 1_000L;
+
+  private static final String SEGMENT_SUFFIX = ".journal";
+
+  private static final int MAGIC = 0x53504a4c;
+
+  /** Segment header: magic number and segment size. */
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+  /** Record header: body length and CRC32 of the body. */
+  private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+  private static final int RECORD_STRINGS = 5;
+
+  /** Bytes of a record body besides its strings: timestamp, event type, phase and lengths. */
+  private static final int RECORD_FIXED_SIZE = Long.BYTES + 2 + RECORD_STRINGS * Short.BYTES;
+
+  private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+  /** Largest record, with its header, a torn record can't extend beyond it. */
+  private static final int MAX_RECORD_SIZE =
+      RECORD_HEADER_SIZE + RECORD_FIXED_SIZE + RECORD_STRINGS * MAX_STRING_LENGTH;
+
+  /** A journaled event. */
+  @Value
+  public static class Record {
+    long position;
+    long timestamp;
+    StackableSparkWatcher.EventType eventType;
+    String appName;
+    K8StackableSparkController.Phase phase;
+    String resourceVersion;
+    String uid;
+    String contentHash;
+    String creationTimestamp;
+
+    /** The record as an application object, with the same shape as the watcher payloads. */
+    public AbstractMap<String, Object> toPayload() {
+      Map<String, Object> metadata = new HashMap<>();
+      metadata.put("name", appName);
+      putIfNotNull(metadata, "resourceVersion", resourceVersion);
+      putIfNotNull(metadata, "uid", uid);
+      putIfNotNull(metadata, "creationTimestamp", creationTimestamp);
+      if (contentHash != null) {
+        Map<String, Object> annotations = new HashMap<>();
+        annotations.put(SparkCrd.CONTENT_HASH_ANNOTATION, contentHash);
+        metadata.put("annotations", annotations);
+      }
+      HashMap<String, Object> payload = new HashMap<>();
+      payload.put("metadata", metadata);
+      if (phase != null && phase != K8StackableSparkController.Phase.EMPTY) {
+        String phaseName = phase.name();
+        Map<String, Object> status = new HashMap<>();
+        status.put(
+            "phase", phaseName.charAt(0) + phaseName.substring(1).toLowerCase(Locale.ENGLISH));
+        payload.put("status", status);
+      }
+      return payload;
+    }
+
+    private static void putIfNotNull(Map<String, Object> map, String key, String value) {
+      if (value != null) {
+        map.put(key, value);
+      }
+    }
+  }
+
+  private final Path directory;
+
+  private final int segmentSize;
+
+  private final StackableSparkWatcher.EventsListener delegate;
+
+  private final ScheduledExecutorService forceScheduler;
+
+  private final CRC32 crc = new CRC32();
+
+  private int segmentIndex;
+
+  private FileChannel segmentChannel;
+
+  private MappedByteBuffer segment;
+
+  private boolean dirty = false;
+
+  private String lastResourceVersion;
+
+  /**
+   * Opens or creates a journal in a directory.
+   *
+   * @param directory where segment files are stored
+   * @param segmentSize size in bytes of each segment, 64MB by default or the size of the existing
+   *     segments. Reopening a journal with a different size fails.
+   * @param forceIntervalMillis maximum time between flushes to disk, 1 second by default
+   * @param delegate optional listener called after each event is journaled
+   */
+  @SneakyThrows
+  @Builder
+  public EventJournal(
+      @NonNull Path directory,
+      int segmentSize,
+      long forceIntervalMillis,
+      StackableSparkWatcher.EventsListener delegate) {
+    this.directory = directory;
+    this.delegate = delegate;
+    Files.createDirectories(directory);
+    int lastIndex = lastSegmentIndex();
+    int existingSegmentSize = lastIndex >= 0 ? readSegmentSize(lastIndex) : -1;
+    if (existingSegmentSize > 0 && segmentSize > 0 && segmentSize != existingSegmentSize) {
+      throw new IllegalArgumentException(
+          "Journal "
+              + directory
+              + " has a segment size of "
+              + existingSegmentSize
+              + ", can't be opened with "
+              + segmentSize);
+    }
+    this.segmentSize =
+        existingSegmentSize > 0
+            ? existingSegmentSize
+            : segmentSize > 0 ? segmentSize : DEFAULT_SEGMENT_SIZE;
+    if (this.segmentSize < HEADER_SIZE + RECORD_HEADER_SIZE + RECORD_FIXED_SIZE) {
+      throw new IllegalArgumentException("Segment size too small: " + this.segmentSize);
+    }
+    recover(lastIndex);
+
+    long interval = forceIntervalMillis > 0 ? forceIntervalMillis : DEFAULT_FORCE_INTERVAL_MILLIS;
+    forceScheduler =
+        Executors.newSingleThreadScheduledExecutor(VirtualThreads.threadFactory("event-journal-"));
+    forceScheduler.scheduleWithFixedDelay(
+        this::forceIfDirty, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /** Finds the write position of the last segment and the last journaled resourceVersion. */
+  private void recover(int lastIndex) {
+    openSegment(Math.max(lastIndex, 0));
+    for (int index = lastIndex; index >= 0 && lastResourceVersion == null; index--) {
+      int end =
+          scanSegment(
+              index,
+              HEADER_SIZE,
+              record -> {
+                if (record.getResourceVersion() != null) {
+                  lastResourceVersion = record.getResourceVersion();
+                }
+              });
+      if (index == lastIndex) {
+        clearTail(end);
+        ((Buffer) segment).position(end);
+        log.debug("Recovered journal segment {} up to offset {}", index, end);
+      }
+    }
+  }
+
+  /**
+   * Zeroes the bytes after the last valid record, left by a torn record. Records are appended one
+   * at a time, so only the space of one record after the last valid one is checked.
+   */
+  private void clearTail(int end) {
+    boolean cleared = false;
+    int tailEnd = (int) Math.min(segment.capacity(), (long) end + MAX_RECORD_SIZE);
+    for (int offset = end; offset < tailEnd; offset++) {
+      if (segment.get(offset) != 0) {
+        segment.put(offset, (byte) 0);
+        cleared = true;
+      }
+    }
+    if (cleared) {
+      log.warn("Discarded torn record at offset {} of journal segment {}", end, segmentIndex);
+      segment.force();
+    }
+  }
+
+  @SneakyThrows
+  private int lastSegmentIndex() {
+    int lastIndex = -1;
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        String fileName = file.getFileName().toString();
+        if (fileName.endsWith(SEGMENT_SUFFIX)) {
+          lastIndex =
+              Math.max(
+                  lastIndex,
+                  Integer.parseInt(
+                      fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length())));
+        }
+      }
+    }
+    return lastIndex;
+  }
+
+  @SneakyThrows
+  private int readSegmentSize(int index) {
+    try (FileChannel channel = FileChannel.open(segmentPath(index), StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // reads the full header
+      }
+      ((Buffer) header).flip();
+      if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+        throw new IllegalStateException("Not a journal segment: " + segmentPath(index));
+      }
+      return header.getInt();
+    }
+  }
+
+  private Path segmentPath(int index) {
+    return directory.resolve(String.format("%010d%s", index, SEGMENT_SUFFIX));
+  }
+
+  @SneakyThrows
+  private void openSegment(int index) {
+    segmentIndex = index;
+    segmentChannel =
+        FileChannel.open(
+            segmentPath(index),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    if (segment.getInt(0) != MAGIC) {
+      segment.putInt(0, MAGIC).putInt(Integer.BYTES, segmentSize);
+    }
+    ((Buffer) segment).position(HEADER_SIZE);
+  }
+
+  @SneakyThrows
+  private void rollOver() {
+    segment.force();
+    segmentChannel.close();
+    openSegment(segmentIndex + 1);
+    log.debug("Journal rolled over to segment {}", segmentIndex);
+  }
+
+  /** Re-lists are not journaled, they are only passed to the delegate listener. */
+  @Override
+  public void onRelist() {
+    if (delegate != null) {
+      delegate.onRelist();
+    }
+  }
+
+  /** Appends an event to the journal and calls the delegate listener, if any. */
+  @Override
+  public void onEvent(
+      StackableSparkWatcher.EventType eventType,
+      String appName,
+      K8StackableSparkController.Phase phase,
+      Object payload) {
+    if (payload instanceof AbstractMap) {
+      AbstractMap<String, Object> object = (AbstractMap<String, Object>) payload;
+      Object metadata = object.get("metadata");
+      Object creationTimestamp =
+          metadata instanceof AbstractMap
+              ? ((AbstractMap<String, Object>) metadata).get("creationTimestamp")
+              : null;
+      write(
+          eventType,
+          appName,
+          phase,
+          getResourceVersion(object),
+          getUid(object),
+          SparkApplicationCache.getContentHash(object),
+          creationTimestamp != null ? creationTimestamp.toString() : null);
+    } else {
+      write(eventType, appName, phase, null, null, null, null);
+    }
+    if (delegate != null) {
+      delegate.onEvent(eventType, appName, phase, payload);
+    }
+  }
+
+  /** Appends a record and returns its position. */
+  public long append(
+      StackableSparkWatcher.EventType eventType,
+      String appName,
+      K8StackableSparkController.Phase phase,
+      String resourceVersion) {
+    return write(eventType, appName, phase, resourceVersion, null, null, null);
+  }
+
+  private synchronized long write(
+      StackableSparkWatcher.EventType eventType,
+      String appName,
+      K8StackableSparkController.Phase phase,
+      String resourceVersion,
+      String uid,
+      String contentHash,
+      String creationTimestamp) {
+    byte[][] strings = {
+      toBytes(appName), toBytes(resourceVersion), toBytes(uid), toBytes(contentHash),
+      toBytes(creationTimestamp)
+    };
+    int length = RECORD_FIXED_SIZE;
+    for (byte[] string : strings) {
+      length += string.length;
+    }
+    if (HEADER_SIZE + RECORD_HEADER_SIZE + length > segmentSize) {
+      throw new IllegalArgumentException("Record too large for journal segment: " + length);
+    }
+    if (segment.remaining() < RECORD_HEADER_SIZE + length) {
+      rollOver();
+    }
+    int start = segment.position();
+    long position = (long) segmentIndex * segmentSize + start;
+
+    // body first, then its checksum and the length last, a torn record has length 0
+    ((Buffer) segment).position(start + RECORD_HEADER_SIZE);
+    segment
+        .putLong(System.currentTimeMillis())
+        .put(eventType != null ? (byte) eventType.ordinal() : -1)
+        .put(phase != null ? (byte) phase.ordinal() : -1);
+    for (byte[] string : strings) {
+      segment.putShort((short) string.length).put(string);
+    }
+    ByteBuffer body = ((ByteBuffer) segment).duplicate();
+    ((Buffer) body).position(start + RECORD_HEADER_SIZE).limit(start + RECORD_HEADER_SIZE + length);
+    crc.reset();
+    crc.update(body);
+    segment.putInt(start + Integer.BYTES, (int) crc.getValue());
+    segment.putInt(start, length);
+
+    if (resourceVersion != null) {
+      lastResourceVersion = resourceVersion;
+    }
+    dirty = true;
+    return position;
+  }
+
+  /**
+   * Replays all records starting at a checkpoint position.
+   *
+   * @return the position following the last record replayed, to be used as the next checkpoint
+   */
+  public synchronized long replay(long fromPosition, Consumer<Record> consumer) {
+    int index = (int) (fromPosition / segmentSize);
+    int offset = (int) (fromPosition % segmentSize);
+    long next = fromPosition;
+    for (; index <= segmentIndex; index++, offset = 0) {
+      next = (long) index * segmentSize + scanSegment(index, offset, consumer);
+    }
+    return next;
+  }
+
+  /**
+   * Replays all records starting at a checkpoint position to an events listener, the payload of
+   * each event is {@link Record#toPayload()}.
+   */
+  public long replay(long fromPosition, StackableSparkWatcher.EventsListener listener) {
+    return replay(
+        fromPosition,
+        record ->
+            listener.onEvent(
+                record.getEventType(), record.getAppName(), record.getPhase(), record.toPayload()));
+  }
+
+  /** Reads the records of a segment from an offset, returns the offset after the last record. */
+  @SneakyThrows
+  private int scanSegment(int index, int offset, Consumer<Record> consumer) {
+    Path path = segmentPath(index);
+    if (!Files.exists(path)) {
+      return Math.max(offset, HEADER_SIZE);
+    }
+    ByteBuffer buffer;
+    if (index == segmentIndex) {
+      buffer = ((ByteBuffer) segment).duplicate();
+    } else {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+    }
+    ((Buffer) buffer).position(Math.max(offset, HEADER_SIZE));
+    CRC32 recordCrc = new CRC32();
+    while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+      int start = buffer.position();
+      int length = buffer.getInt();
+      int checksum = buffer.getInt();
+      if (length < RECORD_FIXED_SIZE || length > buffer.remaining()) {
+        ((Buffer) buffer).position(start);
+        break;
+      }
+      ByteBuffer body = buffer.duplicate();
+      ((Buffer) body).limit(body.position() + length);
+      recordCrc.reset();
+      recordCrc.update(body);
+      if ((int) recordCrc.getValue() != checksum) {
+        ((Buffer) buffer).position(start);
+        break;
+      }
+      long timestamp = buffer.getLong();
+      byte eventType = buffer.get();
+      byte phase = buffer.get();
+      consumer.accept(
+          new Record(
+              (long) index * segmentSize + start,
+              timestamp,
+              eventType >= 0 ? StackableSparkWatcher.EventType.values()[eventType] : null,
+              readString(buffer),
+              phase >= 0 ? K8StackableSparkController.Phase.values()[phase] : null,
+              readString(buffer),
+              readString(buffer),
+              readString(buffer),
+              readString(buffer)));
+    }
+    return buffer.position();
+  }
+
+  private static byte[] toBytes(String value) {
+    if (value == null) {
+      return new byte[0];
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_STRING_LENGTH) {
+      throw new IllegalArgumentException("Value too large for journal: " + bytes.length);
+    }
+    return bytes;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getShort() & MAX_STRING_LENGTH;
+    if (length == 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Position at which the next record will be written. */
+  public synchronized long position() {
+    return (long) segmentIndex * segmentSize + segment.position();
+  }
+
+  /** Last resourceVersion journaled, null if none. */
+  public synchronized String getLastResourceVersion() {
+    return lastResourceVersion;
+  }
+
+  /** Flushes pending writes to disk. */
+  public synchronized void force() {
+    segment.force();
+    dirty = false;
+  }
+
+  /** Called periodically so the tail is flushed even when no more events arrive. */
+  private synchronized void forceIfDirty() {
+    try {
+      if (dirty) {
+        force();
+      }
+    } catch (RuntimeException ex) {
+      log.error("Error flushing journal segment {}", segmentIndex, ex);
+    }
+  }
+
+  @Override
+  @SneakyThrows
+  public synchronized void close() {
+    forceScheduler.shutdownNow();
+    force();
+    segmentChannel.close();
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pull-based events listener backed by a bounded buffer.
+ *
+ * <p>Events are consumed through a blocking {@link Iterator}, a {@link Stream}, in batches using
+ * {@link #poll(int, long, TimeUnit)} or as a Reactive Streams {@link Publisher}, which delivers
+ * events only as requested by its subscriber. When the buffer is full the watcher thread blocks in
+ * {@link #onEvent}, so it stops reading from K8 until the consumer catches up. Events are consumed
+ * once, a subscription is meant to be read using only one of these ways. Usage:
+ *
+ * <pre>{@code
+ * EventSubscription subscription = new EventSubscription(1000);
+ * new StackableSparkWatcher(kubeConfig, subscription, nameSelector).start();
+ * subscription.stream().forEach(event -> ...);
+ * }</pre>
+ */
+@Slf4j
+public class EventSubscription
+    implements StackableSparkWatcher.EventsListener,
+        Iterable<EventSubscription.Event>,
+        Publisher<EventSubscription.Event>,
+        Closeable {
+
+  /** Maximum time producers and consumers wait before checking if the subscription is closed. */
+  private static final long WAIT_MILLIS = 100L;
+
+  /** Event received from the watcher. */
+  @Value
+  public static class Event {
+    StackableSparkWatcher.EventType eventType;
+    String appName;
+    K8StackableSparkController.Phase phase;
+    Object payload;
+  }
+
+  private final BlockingQueue<Event> buffer;
+
+  private volatile boolean closed = false;
+
+  /** Only one subscriber is accepted, events are not broadcast. */
+  private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+  /** Creates a subscription that buffers up to capacity events. */
+  public EventSubscription(int capacity) {
+    buffer = new ArrayBlockingQueue<>(capacity);
+  }
+
+  /** Buffers the event, blocking while the buffer is full. Events are dropped once closed. */
+  @Override
+  @SneakyThrows
+  public void onEvent(
+      StackableSparkWatcher.EventType eventType,
+      String appName,
+      K8StackableSparkController.Phase phase,
+      Object payload) {
+    Event event = new Event(eventType, appName, phase, payload);
+    while (!closed) {
+      if (buffer.offer(event, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+        return;
+      }
+    }
+    log.debug("Subscription closed, event for application {} dropped", appName);
+  }
+
+  /**
+   * Waits for at least one event and returns up to maxEvents, or an empty list if the timeout
+   * elapses or the subscription is closed.
+   */
+  @SneakyThrows
+  public List<Event> poll(int maxEvents, long timeout, TimeUnit unit) {
+    if (maxEvents <= 0) {
+      throw new IllegalArgumentException("maxEvents must be > 0: " + maxEvents);
+    }
+    List<Event> events = new ArrayList<>(Math.min(maxEvents, buffer.size() + 1));
+    Event first = take(unit.toNanos(timeout));
+    if (first != null) {
+      events.add(first);
+      buffer.drainTo(events, maxEvents - 1);
+    }
+    return events;
+  }
+
+  /**
+   * Waits until an event is available, the timeout elapses or the subscription is closed, a
+   * timeout of Long.MAX_VALUE waits forever. The closed flag is checked periodically, so consumers
+   * are released even if a producer refilled the buffer while it was being closed.
+   */
+  private Event take(long timeoutNanos) throws InterruptedException {
+    long startNanos = System.nanoTime();
+    while (!closed) {
+      long remainingNanos =
+          timeoutNanos == Long.MAX_VALUE
+              ? Long.MAX_VALUE
+              : timeoutNanos - (System.nanoTime() - startNanos);
+      if (remainingNanos <= 0) {
+        return null;
+      }
+      Event event =
+          buffer.poll(
+              Math.min(remainingNanos, TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS)),
+              TimeUnit.NANOSECONDS);
+      if (event != null) {
+        return closed ? null : event;
+      }
+    }
+    return null;
+  }
+
+  /** Blocking iterator over the events, it ends when the subscription is closed. */
+  @Override
+  public Iterator<Event> iterator() {
+    return new Iterator<Event>() {
+
+      private Event next;
+
+      @Override
+      @SneakyThrows
+      public boolean hasNext() {
+        if (next == null) {
+          next = take(Long.MAX_VALUE);
+        }
+        return next != null;
+      }
+
+      @Override
+      public Event next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Event event = next;
+        next = null;
+        return event;
+      }
+    };
+  }
+
+  /** Sequential stream of events, it ends when the subscription is closed. */
+  public Stream<Event> stream() {
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(
+            iterator(), Spliterator.ORDERED | Spliterator.NONNULL),
+        false);
+  }
+
+  /**
+   * Subscribes the only subscriber of this subscription. Events are delivered from a dedicated
+   * thread as they are requested, events not requested stay in the buffer, so the watcher is
+   * blocked when the subscriber doesn't keep up. The subscriber is completed when the subscription
+   * is closed.
+   */
+  @Override
+  public void subscribe(Subscriber<? super Event> subscriber) {
+    Objects.requireNonNull(subscriber, "Subscriber can't be null");
+    if (!subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(
+          new Subscription() {
+            @Override
+            public void request(long n) {}
+
+            @Override
+            public void cancel() {}
+          });
+      subscriber.onError(new IllegalStateException("Subscription already has a subscriber"));
+      return;
+    }
+    DemandSubscription subscription = new DemandSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+    VirtualThreads.threadFactory("event-subscription-").newThread(subscription::deliver).start();
+  }
+
+  /** Tracks the demand of the subscriber, the delivery thread waits while there is none. */
+  private class DemandSubscription implements Subscription {
+
+    private final Subscriber<? super Event> subscriber;
+
+    private long demand = 0;
+
+    private boolean cancelled = false;
+
+    private Throwable error;
+
+    private DemandSubscription(Subscriber<? super Event> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public synchronized void request(long n) {
+      if (n <= 0) {
+        // rule 3.9, signalled by the delivery thread to keep the signals serialized
+        error = new IllegalArgumentException("Requested events must be > 0: " + n);
+      } else {
+        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+      }
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void cancel() {
+      cancelled = true;
+      notifyAll();
+    }
+
+    /** Waits for demand, returns false if cancelled, failed or the subscription is closed. */
+    private synchronized boolean awaitDemand() throws InterruptedException {
+      while (demand == 0 && !cancelled && error == null && !closed) {
+        wait(WAIT_MILLIS);
+      }
+      return !cancelled && error == null && !closed;
+    }
+
+    private synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    private synchronized void consumeDemand() {
+      if (demand != Long.MAX_VALUE) {
+        demand--;
+      }
+    }
+
+    private void deliver() {
+      try {
+        while (awaitDemand()) {
+          Event event = take(TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS));
+          if (event != null) {
+            consumeDemand();
+            subscriber.onNext(event);
+          }
+        }
+        Throwable failure;
+        synchronized (this) {
+          failure = error;
+        }
+        if (failure != null) {
+          subscriber.onError(failure);
+        } else if (!isCancelled()) {
+          subscriber.onComplete();
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException ex) {
+        // rule 2.13: a failing subscriber is considered cancelled
+        log.error("Subscriber failed, subscription cancelled", ex);
+        cancel();
+      }
+    }
+  }
+
+  /** Number of events waiting to be consumed. */
+  public int size() {
+    return buffer.size();
+  }
+
+  /** Closes the subscription, pending events are discarded and consumers are released. */
+  @Override
+  public void close() {
+    closed = true;
+    buffer.clear();
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Timer that keeps timeouts in a wheel of buckets, one per tick. Scheduling and cancelling are
+ * O(1) and each tick only visits one bucket, so it scales to many timeouts at the cost of a
+ * precision of one tick. Expired tasks run in an executor, so a slow task doesn't delay the other
+ * deadlines.
+ */
+@Slf4j
+class HashedWheelTimer implements Closeable {
+
+  /** A scheduled task. */
+  class Timeout {
+
+    private final Runnable task;
+
+    private final long deadlineTick;
+
+    private Timeout(Runnable task, long deadlineTick) {
+      this.task = task;
+      this.deadlineTick = deadlineTick;
+    }
+
+    /** Cancels the task, it has no effect if the task has already run. */
+    void cancel() {
+      synchronized (HashedWheelTimer.this) {
+        wheel.get(bucket(deadlineTick)).remove(this);
+      }
+    }
+  }
+
+  private final long tickNanos;
+
+  private final List<Set<Timeout>> wheel;
+
+  private final long startNanos = System.nanoTime();
+
+  private final Thread workerThread;
+
+  private final Executor taskExecutor;
+
+  private long tick = 0;
+
+  private volatile boolean stopped = false;
+
+  HashedWheelTimer(
+      long tickMillis, int wheelSize, ThreadFactory threadFactory, Executor taskExecutor) {
+    this.taskExecutor = taskExecutor;
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.wheel = new ArrayList<>(wheelSize);
+    for (int i = 0; i < wheelSize; i++) {
+      wheel.add(new LinkedHashSet<>());
+    }
+    workerThread = threadFactory.newThread(this::run);
+    workerThread.start();
+  }
+
+  private int bucket(long deadlineTick) {
+    return (int) (deadlineTick % wheel.size());
+  }
+
+  /** Schedules a task to run after a delay. */
+  synchronized Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    long ticks = Math.max(1, (unit.toNanos(delay) + tickNanos - 1) / tickNanos);
+    Timeout timeout = new Timeout(task, tick + ticks);
+    wheel.get(bucket(timeout.deadlineTick)).add(timeout);
+    return timeout;
+  }
+
+  private void run() {
+    while (!stopped) {
+      long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      for (Timeout timeout : expire()) {
+        try {
+          taskExecutor.execute(
+              () -> {
+                try {
+                  timeout.task.run();
+                } catch (Exception ex) {
+                  log.error("Error running timer task", ex);
+                }
+              });
+        } catch (RejectedExecutionException ex) {
+          log.warn("Timer task rejected, the executor is shut down");
+        }
+      }
+    }
+  }
+
+  /** Advances one tick and removes the expired timeouts of the bucket. */
+  private synchronized List<Timeout> expire() {
+    tick++;
+    List<Timeout> expired = new ArrayList<>();
+    Iterator<Timeout> timeouts = wheel.get(bucket(tick)).iterator();
+    while (timeouts.hasNext()) {
+      Timeout timeout = timeouts.next();
+      if (timeout.deadlineTick <= tick) {
+        timeouts.remove();
+        expired.add(timeout);
+      }
+    }
+    return expired;
+  }
+
+  /** Number of pending timeouts. */
+  synchronized int size() {
+    return wheel.stream().mapToInt(Set::size).sum();
+  }
+
+  @Override
+  public void close() {
+    stopped = true;
+    workerThread.interrupt();
+  }
+}
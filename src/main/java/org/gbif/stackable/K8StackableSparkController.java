@@ -15,32 +15,58 @@
  */
 package org.gbif.stackable;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.kubernetes.client.custom.V1Patch;
 import io.kubernetes.client.openapi.ApiException;
 import io.kubernetes.client.openapi.Configuration;
 import io.kubernetes.client.openapi.apis.CustomObjectsApi;
 import io.kubernetes.client.util.ClientBuilder;
 import io.kubernetes.client.util.KubeConfig;
+import io.kubernetes.client.util.PatchUtils;
 import lombok.Builder;
 import lombok.NonNull;
 import lombok.SneakyThrows;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Response;
 
 import static org.gbif.stackable.SparkAppUtils.STACKABLE_SPARK_GROUP;
 import static org.gbif.stackable.SparkAppUtils.STACKABLE_SPARK_PLURAL;
 import static org.gbif.stackable.SparkAppUtils.STACKABLE_SPARK_VERSION;
 import static org.gbif.stackable.SparkAppUtils.getPhase;
+import static org.gbif.stackable.SparkAppUtils.toSelectorQuery;
 
 @Slf4j
 public class K8StackableSparkController {
 
   public static final int NOT_FOUND = 404;
 
+  /** Page size used to list applications. */
+  private static final int LIST_PAGE_SIZE = 500;
+
   private static final ObjectMapper MAPPER = new ObjectMapper();
 
   private interface AppOperation {
@@ -64,10 +90,34 @@ public class K8StackableSparkController {
     UNKNOWN;
   }
 
+  /** Result of a batch submission, a failed application doesn't stop the rest of the batch. */
+  @Value
+  public static class BatchResult {
+
+    /** Names of the applications submitted. */
+    List<String> submitted;
+
+    /**
+     * Error of each application that couldn't be submitted, by application name, and of each
+     * document that couldn't be parsed, by {@link ConfigUtils.SparkCrdParseException#getSource()}.
+     */
+    Map<String, Exception> failures;
+
+    public boolean isSuccessful() {
+      return failures.isEmpty();
+    }
+  }
+
   private final KubeConfig kubeConfig;
 
   private final SparkCrd sparkCrd;
 
+  /** Optional cache, fed by a watcher, used to check applications without requests to K8. */
+  private final SparkApplicationCache applicationCache;
+
+  /** Validates applications before any request is sent to K8. */
+  private volatile SparkCrdValidator validator = SparkCrdValidator.DEFAULT;
+
   @SneakyThrows
   public static K8StackableSparkController fromConfigFiles(
       String kubeConfigFile, String sparkApplicationConfigFile) {
@@ -77,14 +127,29 @@ public class K8StackableSparkController {
         .build();
   }
 
+  public K8StackableSparkController(SparkCrd sparkCrd, KubeConfig kubeConfig) {
+    this(sparkCrd, kubeConfig, null);
+  }
+
   @SneakyThrows
   @Builder
-  public K8StackableSparkController(SparkCrd sparkCrd, KubeConfig kubeConfig) {
+  public K8StackableSparkController(
+      SparkCrd sparkCrd, KubeConfig kubeConfig, SparkApplicationCache applicationCache) {
     this.sparkCrd = sparkCrd;
     this.kubeConfig = kubeConfig;
+    this.applicationCache = applicationCache;
     Configuration.setDefaultApiClient(ClientBuilder.kubeconfig(kubeConfig).build());
   }
 
+  /**
+   * Sets the validator used before submitting applications, e.g. {@link
+   * SparkCrdValidator#fromCluster(io.kubernetes.client.openapi.ApiClient)} to also check the CRD
+   * schema.
+   */
+  public void setValidator(@NonNull SparkCrdValidator validator) {
+    this.validator = validator;
+  }
+
   private void deleteIfExists(String applicationId) throws ApiException {
     try {
       getSparkApplication(applicationId);
@@ -110,6 +175,125 @@ public class K8StackableSparkController {
     return getPhase(status, Phase.INITIATING);
   }
 
+  /**
+   * Gets the phases of multiple applications listing the namespace, instead of one request per
+   * application. Applications not found are not included in the result.
+   */
+  public Map<String, Phase> getPhases(Collection<String> applicationIds) throws ApiException {
+    Set<String> ids = new HashSet<>(applicationIds);
+    return listPhases(null, ids::contains);
+  }
+
+  /** Gets the phases of all the applications that match a label selector. */
+  public Map<String, Phase> getPhases(Map<String, String> labelSelector) throws ApiException {
+    return listPhases(toSelectorQuery(labelSelector), name -> true);
+  }
+
+  /** Lists applications in pages, only the name and phase of each application are decoded. */
+  private Map<String, Phase> listPhases(String labelSelector, Predicate<String> nameFilter)
+      throws ApiException {
+    CustomObjectsApi customObjectsApi = new CustomObjectsApi();
+    Map<String, Phase> phases = new HashMap<>();
+    String continueToken = null;
+    do {
+      Call call =
+          customObjectsApi.listNamespacedCustomObjectCall(
+              STACKABLE_SPARK_GROUP,
+              STACKABLE_SPARK_VERSION,
+              kubeConfig.getNamespace(),
+              STACKABLE_SPARK_PLURAL,
+              null,
+              null,
+              continueToken,
+              null,
+              labelSelector,
+              LIST_PAGE_SIZE,
+              null,
+              null,
+              null,
+              null,
+              null);
+      try (Response response = call.execute()) {
+        if (!response.isSuccessful()) {
+          throw new ApiException(
+              response.code(),
+              response.headers().toMultimap(),
+              response.body() != null ? response.body().string() : null);
+        }
+        continueToken = readPhases(response, nameFilter, phases);
+      } catch (IOException ex) {
+        throw new ApiException(ex);
+      }
+    } while (continueToken != null && !continueToken.isEmpty());
+    return phases;
+  }
+
+  /** Streams a list response collecting phases, returns the continue token if any. */
+  private static String readPhases(
+      Response response, Predicate<String> nameFilter, Map<String, Phase> phases)
+      throws IOException {
+    String continueToken = null;
+    try (JsonParser parser = MAPPER.getFactory().createParser(response.body().byteStream())) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Unexpected list response");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if ("metadata".equals(field)) {
+          continueToken = readStringField(parser, "continue");
+        } else if ("items".equals(field) && token == JsonToken.START_ARRAY) {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            readItemPhase(parser, nameFilter, phases);
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+    return continueToken;
+  }
+
+  private static void readItemPhase(
+      JsonParser parser, Predicate<String> nameFilter, Map<String, Phase> phases)
+      throws IOException {
+    String name = null;
+    String phase = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("metadata".equals(field)) {
+        name = readStringField(parser, "name");
+      } else if ("status".equals(field)) {
+        phase = readStringField(parser, "phase");
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if (name != null && nameFilter.test(name)) {
+      phases.put(name, phase != null ? Phase.valueOf(phase.toUpperCase()) : Phase.INITIATING);
+    }
+  }
+
+  /** Reads a string field of the current object, skipping all other fields. */
+  private static String readStringField(JsonParser parser, String fieldName) throws IOException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return null;
+    }
+    String value = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if (fieldName.equals(field) && token == JsonToken.VALUE_STRING) {
+        value = parser.getText();
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return value;
+  }
+
   public AbstractMap<String, Object> submitSparkApplication(String applicationId) throws ApiException {
     return submitSparkApplication(sparkCrd, applicationId);
   }
@@ -128,18 +312,189 @@ public class K8StackableSparkController {
     Objects.requireNonNull(sparkPodConfig, "Pod configuraion can't be null");
     Objects.requireNonNull(name, "Application name configuraion can't be null");
 
+    // validated before the existing application is deleted
+    validator.check(sparkPodConfig);
     deleteIfExists(name);
-    return (AbstractMap<String, Object>)
-        customObjectsApi.createNamespacedCustomObject(
-            STACKABLE_SPARK_GROUP,
-            STACKABLE_SPARK_VERSION,
-            kubeConfig.getNamespace(),
-            STACKABLE_SPARK_PLURAL,
-            sparkPodConfig,
-            "true",
-            null,
-            null);
+    AbstractMap<String, Object> application =
+        (AbstractMap<String, Object>)
+            customObjectsApi.createNamespacedCustomObject(
+                STACKABLE_SPARK_GROUP,
+                STACKABLE_SPARK_VERSION,
+                kubeConfig.getNamespace(),
+                STACKABLE_SPARK_PLURAL,
+                MergePatch.toBody(sparkPodConfig),
+                "true",
+                null,
+                null);
+    cache(application);
+    return application;
+  }
+
+  /** Stores an application written by this controller, the watcher may not have seen it yet. */
+  private void cache(AbstractMap<String, Object> application) {
+    if (applicationCache != null && application != null) {
+      applicationCache.put(application);
+    }
+  }
+
+  /**
+   * Submits a batch of applications, e.g. read by {@link ConfigUtils#streamSparkCrds(Path,
+   * boolean)}, as in {@link #submitSparkApplication(SparkCrd)}. Applications are consumed one by
+   * one, parallel streams are submitted concurrently. The stream is closed once submitted. An
+   * application that fails is recorded in the result and the rest of the batch is submitted.
+   * Parse errors thrown by the stream abort the batch, {@link #submitSparkApplications(Path,
+   * boolean)} records them as failures.
+   *
+   * @return the applications submitted and the errors of the ones that failed
+   */
+  public BatchResult submitSparkApplications(@NonNull Stream<SparkCrd> crds) {
+    return submitSparkApplications(crds, Collections.synchronizedMap(new LinkedHashMap<>()));
+  }
+
+  /**
+   * Submits the applications of a file or directory tree read by {@link
+   * ConfigUtils#streamSparkCrds(Path, boolean, java.util.function.Consumer)}. Documents that can't
+   * be parsed are recorded as failures of the result and the rest of the batch is submitted.
+   *
+   * @return the applications submitted and the errors of the ones that failed
+   */
+  public BatchResult submitSparkApplications(@NonNull Path path, boolean parallel) {
+    Map<String, Exception> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+    return submitSparkApplications(
+        ConfigUtils.streamSparkCrds(
+            path,
+            parallel,
+            ex -> {
+              log.warn("Error parsing {} of a batch", ex.getSource(), ex);
+              failures.put(ex.getSource(), ex);
+            }),
+        failures);
+  }
 
+  private BatchResult submitSparkApplications(
+      Stream<SparkCrd> crds, Map<String, Exception> failures) {
+    List<String> submitted = Collections.synchronizedList(new ArrayList<>());
+    try (Stream<SparkCrd> batch = crds) {
+      batch.forEach(
+          crd -> {
+            String name = crd.getMetadata() != null ? crd.getMetadata().getName() : null;
+            try {
+              submitSparkApplication(crd);
+              submitted.add(name);
+            } catch (Exception ex) {
+              log.warn("Error submitting application {} of a batch", name, ex);
+              failures.put(name, ex);
+            }
+          });
+    }
+    return new BatchResult(
+        Collections.unmodifiableList(submitted), Collections.unmodifiableMap(failures));
+  }
+
+  /**
+   * Submits an application unless an identical one is already active. The {@link
+   * SparkCrd#contentHash()} is stored as an annotation and compared with the live application.
+   * If the hashes match and the application is not in a terminal phase the live application is
+   * returned, otherwise it is replaced as in {@link #submitSparkApplication(SparkCrd, String)}.
+   *
+   * <p>If an application cache is available an identical active entry avoids any request to K8.
+   * Otherwise the application is read from K8 before replacing it: the cache can be behind, e.g.
+   * when the watcher is slowed down by backpressure, and a healthy application must not be
+   * recreated because of an outdated entry.
+   */
+  public AbstractMap<String, Object> submitSparkApplicationIfChanged(
+      @NonNull SparkCrd crd, String applicationId) throws ApiException {
+    SparkCrd sparkPodConfig =
+        Optional.ofNullable(applicationId).map(aid -> cloneAndRename(crd, aid)).orElse(crd);
+    String name = Optional.ofNullable(applicationId).orElse(sparkPodConfig.getMetadata().getName());
+    Objects.requireNonNull(name, "Application name configuraion can't be null");
+
+    SparkCrd hashedConfig = sparkPodConfig.withContentHash();
+    String contentHash =
+        hashedConfig.getMetadata().getAnnotations().get(SparkCrd.CONTENT_HASH_ANNOTATION);
+
+    SparkApplicationCache.Entry cached =
+        applicationCache != null ? applicationCache.get(name) : null;
+    if (cached != null && isActive(cached.getApplication(), cached.getPhase(), contentHash)) {
+      log.info("Application {} is already active with the same spec, not resubmitted", name);
+      return cached.getApplication();
+    }
+    AbstractMap<String, Object> live = getApplication(name);
+    if (live != null && isActive(live, getPhase(live, Phase.INITIATING), contentHash)) {
+      log.info("Application {} is already active with the same spec, not resubmitted", name);
+      cache(live);
+      return live;
+    }
+    return submitSparkApplication(hashedConfig, name);
+  }
+
+  private static boolean isActive(
+      AbstractMap<String, Object> application, Phase phase, String contentHash) {
+    return contentHash.equals(SparkApplicationCache.getContentHash(application))
+        && !isTerminal(phase);
+  }
+
+  /**
+   * Updates an application in place, e.g. to change the executor instances, labels or annotations
+   * of a queued application. Only the JSON merge patch between the current and the desired
+   * SparkCrd is sent, so the application keeps its uid and history. If the current SparkCrd has a
+   * content hash annotation it is recomputed for the desired one.
+   *
+   * @return the patched application, or the live one if there are no changes
+   */
+  public AbstractMap<String, Object> patchSparkApplication(
+      @NonNull SparkCrd current, @NonNull SparkCrd desired) throws ApiException {
+    String name = desired.getMetadata().getName();
+    if (!Objects.equals(name, current.getMetadata().getName())) {
+      throw new IllegalArgumentException(
+          "Applications can't be renamed by a patch: "
+              + current.getMetadata().getName()
+              + " to "
+              + name);
+    }
+    Map<String, String> annotations = current.getMetadata().getAnnotations();
+    SparkCrd target =
+        annotations != null && annotations.containsKey(SparkCrd.CONTENT_HASH_ANNOTATION)
+            ? desired.withContentHash()
+            : desired;
+    validator.check(target);
+
+    ObjectNode patch = MergePatch.diff(current, target);
+    if (patch.size() == 0) {
+      log.info("Application {} has no changes, not patched", name);
+      return getSparkApplication(name);
+    }
+    return patchSparkApplication(name, patch);
+  }
+
+  /** Applies a JSON merge patch to an application. */
+  public AbstractMap<String, Object> patchSparkApplication(
+      @NonNull String applicationId, @NonNull JsonNode patch) throws ApiException {
+    CustomObjectsApi customObjectsApi = new CustomObjectsApi();
+    AbstractMap<String, Object> application =
+        (AbstractMap<String, Object>)
+            PatchUtils.patch(
+                Object.class,
+                () ->
+                    customObjectsApi.patchNamespacedCustomObjectCall(
+                        STACKABLE_SPARK_GROUP,
+                        STACKABLE_SPARK_VERSION,
+                        kubeConfig.getNamespace(),
+                        STACKABLE_SPARK_PLURAL,
+                        applicationId,
+                        new V1Patch(patch.toString()),
+                        null,
+                        null,
+                        null,
+                        null),
+                V1Patch.PATCH_FORMAT_JSON_MERGE_PATCH,
+                customObjectsApi.getApiClient());
+    cache(application);
+    return application;
+  }
+
+  private static boolean isTerminal(Phase phase) {
+    return phase == Phase.SUCCEEDED || phase == Phase.FAILED;
   }
 
   @SneakyThrows
@@ -183,6 +538,9 @@ public class K8StackableSparkController {
 
   public AbstractMap<String, Object> stopSparkApplication(String applicationId)
       throws ApiException {
+    if (applicationCache != null) {
+      applicationCache.remove(applicationId);
+    }
     CustomObjectsApi customObjectsApi = new CustomObjectsApi();
     return (AbstractMap<String, Object>)
         customObjectsApi.deleteNamespacedCustomObject(
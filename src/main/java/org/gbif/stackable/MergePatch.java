@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import lombok.NonNull;
+
+/**
+ * Computes JSON merge patches (RFC 7386) between SparkCrds.
+ *
+ * <p>The patch only contains the fields that changed: removed fields are set to null, objects are
+ * diffed recursively and arrays, which merge patches can't update partially, are replaced.
+ *
+ * <p>SparkCrds sent to K8 are serialized by the same mapper in creates and patches, so the field
+ * names are the ones of the Jackson annotations, e.g. {@code default} for the role group.
+ */
+public class MergePatch {
+
+  private static final ObjectMapper MAPPER =
+      new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+  private MergePatch() {}
+
+  /**
+   * SparkCrd as the body of a create request. The ApiClient serializes bodies with Gson, which
+   * ignores the Jackson annotations, so the SparkCrd is converted to plain maps first.
+   */
+  static Map<String, Object> toBody(@NonNull SparkCrd sparkCrd) {
+    return MAPPER.convertValue(sparkCrd, new TypeReference<Map<String, Object>>() {});
+  }
+
+  /** Patch that transforms the source into the target, empty if both are equal. */
+  public static ObjectNode diff(@NonNull SparkCrd source, @NonNull SparkCrd target) {
+    return diff((ObjectNode) MAPPER.valueToTree(source), (ObjectNode) MAPPER.valueToTree(target));
+  }
+
+  /** Patch that transforms the source object into the target object. */
+  public static ObjectNode diff(@NonNull ObjectNode source, @NonNull ObjectNode target) {
+    ObjectNode patch = MAPPER.createObjectNode();
+    for (Iterator<String> fieldNames = source.fieldNames(); fieldNames.hasNext(); ) {
+      String fieldName = fieldNames.next();
+      if (!target.has(fieldName)) {
+        patch.putNull(fieldName);
+      }
+    }
+    for (Iterator<Map.Entry<String, JsonNode>> fields = target.fields(); fields.hasNext(); ) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      JsonNode sourceValue = source.get(field.getKey());
+      JsonNode targetValue = field.getValue();
+      if (sourceValue != null && sourceValue.isObject() && targetValue.isObject()) {
+        ObjectNode fieldPatch = diff((ObjectNode) sourceValue, (ObjectNode) targetValue);
+        if (fieldPatch.size() > 0) {
+          patch.set(field.getKey(), fieldPatch);
+        }
+      } else if (!targetValue.equals(sourceValue)) {
+        patch.set(field.getKey(), targetValue);
+      }
+    }
+    return patch;
+  }
+}
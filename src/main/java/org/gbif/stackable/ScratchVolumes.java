@@ -0,0 +1,147 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.NonNull;
+
+/**
+ * Creates fast local volumes for Spark scratch space, i.e. shuffle and spill files, and mounts
+ * them as {@code spark.local.dir} of the driver and executors.
+ *
+ * <p>Volume names use the {@code spark-local-dir-} prefix, so Spark on K8 uses their mounts as
+ * local directories instead of creating its own emptyDir on the container filesystem.
+ */
+public class ScratchVolumes {
+
+  /** Prefix recognised by Spark on K8 for local directory volumes. */
+  public static final String LOCAL_DIR_PREFIX = "spark-local-dir-";
+
+  public static final String DEFAULT_NAME = LOCAL_DIR_PREFIX + "1";
+
+  public static final String DEFAULT_MOUNT_PATH = "/spark-local";
+
+  private static final String SPARK_LOCAL_DIR = "spark.local.dir";
+
+  private ScratchVolumes() {}
+
+  /** Node-local emptyDir volume, sizeLimit is optional. */
+  public static SparkCrd.Volume emptyDir(String name, String sizeLimit) {
+    return SparkCrd.Volume.builder()
+        .name(name)
+        .emptyDir(SparkCrd.Volume.EmptyDir.builder().sizeLimit(sizeLimit).build())
+        .build();
+  }
+
+  /** RAM-backed (tmpfs) emptyDir volume, the size counts against the Pod memory limit. */
+  public static SparkCrd.Volume memory(String name, @NonNull String sizeLimit) {
+    return SparkCrd.Volume.builder()
+        .name(name)
+        .emptyDir(
+            SparkCrd.Volume.EmptyDir.builder().medium("Memory").sizeLimit(sizeLimit).build())
+        .build();
+  }
+
+  /** Directory of the host, e.g. a local NVMe disk, created if it does not exist. */
+  public static SparkCrd.Volume hostPath(String name, @NonNull String path) {
+    return SparkCrd.Volume.builder()
+        .name(name)
+        .hostPath(SparkCrd.Volume.HostPath.builder().path(path).type("DirectoryOrCreate").build())
+        .build();
+  }
+
+  /** Generic ephemeral volume: a ReadWriteOnce claim of a storage class that lives with the Pod. */
+  public static SparkCrd.Volume ephemeral(
+      String name, String storageClassName, @NonNull String size) {
+    return SparkCrd.Volume.builder()
+        .name(name)
+        .ephemeral(
+            SparkCrd.Volume.Ephemeral.builder()
+                .volumeClaimTemplate(
+                    SparkCrd.Volume.Ephemeral.VolumeClaimTemplate.builder()
+                        .spec(
+                            SparkCrd.Volume.Ephemeral.ClaimSpec.builder()
+                                .accessModes(Collections.singletonList("ReadWriteOnce"))
+                                .storageClassName(storageClassName)
+                                .resources(
+                                    SparkCrd.Volume.Ephemeral.ClaimResources.builder()
+                                        .requests(Collections.singletonMap("storage", size))
+                                        .build())
+                                .build())
+                        .build())
+                .build())
+        .build();
+  }
+
+  /** Adds the volume, mounts it on the driver and executors and sets it as spark.local.dir. */
+  public static SparkCrd withLocalDir(SparkCrd sparkCrd, SparkCrd.Volume volume) {
+    return withLocalDir(sparkCrd, volume, DEFAULT_MOUNT_PATH);
+  }
+
+  /**
+   * Adds the volume, mounts it on the driver and executors at the mount path and sets the path as
+   * spark.local.dir. If spark.local.dir is already set the path is appended to it.
+   */
+  public static SparkCrd withLocalDir(
+      @NonNull SparkCrd sparkCrd, @NonNull SparkCrd.Volume volume, @NonNull String mountPath) {
+    if (volume.getName() == null || !volume.getName().startsWith(LOCAL_DIR_PREFIX)) {
+      throw new IllegalArgumentException(
+          "Scratch volume names must start with " + LOCAL_DIR_PREFIX + ": " + volume.getName());
+    }
+    SparkCrd.Spec spec = sparkCrd.getSpec();
+    SparkCrd.VolumeMount volumeMount =
+        SparkCrd.VolumeMount.builder().name(volume.getName()).mountPath(mountPath).build();
+
+    Map<String, String> sparkConf = new LinkedHashMap<>();
+    if (spec.getSparkConf() != null) {
+      sparkConf.putAll(spec.getSparkConf());
+    }
+    String localDir = sparkConf.get(SPARK_LOCAL_DIR);
+    sparkConf.put(
+        SPARK_LOCAL_DIR,
+        localDir == null || localDir.isEmpty() ? mountPath : localDir + "," + mountPath);
+
+    SparkCrd.Driver driver = spec.getDriver() != null ? spec.getDriver() : new SparkCrd.Driver();
+    SparkCrd.Executor executor =
+        spec.getExecutor() != null ? spec.getExecutor() : new SparkCrd.Executor();
+    return sparkCrd.toBuilder()
+        .spec(
+            spec.toBuilder()
+                .volumes(append(spec.getVolumes(), volume))
+                .sparkConf(sparkConf)
+                .driver(
+                    driver.toBuilder()
+                        .volumeMounts(append(driver.getVolumeMounts(), volumeMount))
+                        .build())
+                .executor(
+                    executor.toBuilder()
+                        .volumeMounts(append(executor.getVolumeMounts(), volumeMount))
+                        .build())
+                .build())
+        .build();
+  }
+
+  private static <T> List<T> append(List<T> list, T element) {
+    List<T> result = list != null ? new ArrayList<>(list) : new ArrayList<>();
+    result.add(element);
+    return result;
+  }
+}
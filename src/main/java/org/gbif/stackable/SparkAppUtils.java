@@ -15,7 +15,13 @@
  */
 package org.gbif.stackable;
 
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 /** Common methods and constants used to interact with Stackable Spark Applications. */
 public class SparkAppUtils {
@@ -49,4 +55,75 @@ public class SparkAppUtils {
   static String getAppName(AbstractMap<String, Object> object) {
     return (String) ((AbstractMap<String, Object>) object.get("metadata")).get("name");
   }
+
+  static String getUid(AbstractMap<String, Object> object) {
+    if (object.containsKey("metadata")) {
+      return (String) ((AbstractMap<String, Object>) object.get("metadata")).get("uid");
+    }
+    return null;
+  }
+
+  static String getResourceVersion(AbstractMap<String, Object> object) {
+    if (object.containsKey("metadata")) {
+      return (String) ((AbstractMap<String, Object>) object.get("metadata")).get("resourceVersion");
+    }
+    return null;
+  }
+
+  /**
+   * Server-side time of the last change of the object: the latest of {@code
+   * metadata.managedFields[].time}, {@code metadata.deletionTimestamp} and {@code
+   * metadata.creationTimestamp}. K8 timestamps have a precision of seconds.
+   *
+   * @return the time or null if the object has none of those timestamps
+   */
+  static Instant getLastUpdateTime(AbstractMap<String, Object> object) {
+    Object metadata = object.get("metadata");
+    if (!(metadata instanceof AbstractMap)) {
+      return null;
+    }
+    AbstractMap<String, Object> meta = (AbstractMap<String, Object>) metadata;
+    Instant last = latest(parseTimestamp(meta.get("creationTimestamp")), null);
+    last = latest(parseTimestamp(meta.get("deletionTimestamp")), last);
+    Object managedFields = meta.get("managedFields");
+    if (managedFields instanceof Collection) {
+      for (Object entry : (Collection<Object>) managedFields) {
+        if (entry instanceof AbstractMap) {
+          last = latest(parseTimestamp(((AbstractMap<String, Object>) entry).get("time")), last);
+        }
+      }
+    }
+    return last;
+  }
+
+  private static Instant parseTimestamp(Object timestamp) {
+    if (timestamp == null) {
+      return null;
+    }
+    try {
+      return OffsetDateTime.parse(timestamp.toString()).toInstant();
+    } catch (DateTimeParseException ex) {
+      return null;
+    }
+  }
+
+  private static Instant latest(Instant instant, Instant other) {
+    if (instant == null) {
+      return other;
+    }
+    return other == null || instant.isAfter(other) ? instant : other;
+  }
+
+  /**
+   * Takes a K8 selector Map<String,String> and returns a string in the format:
+   * key1=value1,..,keyN=valueN.
+   */
+  static String toSelectorQuery(Map<String, String> selector) {
+    if (selector != null && !selector.isEmpty()) {
+      return selector.entrySet().stream()
+          .map(e -> e.getKey() + "=" + e.getValue())
+          .collect(Collectors.joining(","));
+    }
+    return null;
+  }
 }
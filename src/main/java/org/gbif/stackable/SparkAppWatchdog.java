@@ -0,0 +1,288 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Events listener that stops applications staying too long in a phase, e.g. Pending for hours or
+ * Running far beyond their expected duration.
+ *
+ * <p>Budgets are set per phase and can be overridden per application with the annotation or label
+ * {@code stackable-spark.gbif.org/<phase>-timeout}, e.g. {@code
+ * stackable-spark.gbif.org/running-timeout: 6h}. Applications without a phase yet (EMPTY or
+ * INITIATING) use the PENDING budget. The time pending is measured from the {@code
+ * metadata.creationTimestamp} of the application, so it survives restarts and re-lists of the
+ * watcher. Other phases have no timestamp in the status and are measured from the first event
+ * received in that phase. Deadlines are kept in a {@link HashedWheelTimer}, so thousands of
+ * applications are tracked cheaply, and expiry actions run in an executor.
+ */
+@Slf4j
+public class SparkAppWatchdog implements StackableSparkWatcher.EventsListener, Closeable {
+
+  /** Prefix of the annotations and labels that override the phase budgets. */
+  public static final String TIMEOUT_KEY_PREFIX = "stackable-spark.gbif.org/";
+
+  private static final String TIMEOUT_KEY_SUFFIX = "-timeout";
+
+  private static final Pattern DURATION_PATTERN = Pattern.compile("(\\d+)(ms|s|m|h|d)");
+
+  private static final long DEFAULT_TICK_MILLIS = 1_000L;
+
+  private static final int DEFAULT_WHEEL_SIZE = 512;
+
+  /** Action executed when an application exceeds its budget. */
+  public interface ExpiryAction {
+    void onExpiry(String appName, K8StackableSparkController.Phase phase, Duration budget);
+  }
+
+  private static class Deadline {
+    private final K8StackableSparkController.Phase phase;
+    private final Duration budget;
+    private HashedWheelTimer.Timeout timeout;
+
+    private Deadline(K8StackableSparkController.Phase phase, Duration budget) {
+      this.phase = phase;
+      this.budget = budget;
+    }
+  }
+
+  private final Map<K8StackableSparkController.Phase, Duration> budgets;
+
+  private final ExpiryAction expiryAction;
+
+  private final HashedWheelTimer timer;
+
+  /** Executor created by the watchdog, shut down on close. */
+  private final ExecutorService ownedExecutor;
+
+  /** Deadlines by application, guarded by this watchdog so a deadline is stored before it fires. */
+  private final Map<String, Deadline> deadlines = new HashMap<>();
+
+  /**
+   * Creates a watchdog.
+   *
+   * @param budgets default maximum time per phase, phases without a budget are not limited
+   * @param controller used to stop expired applications if no expiryAction is set
+   * @param expiryAction called when an application exceeds its budget
+   * @param tickMillis precision of the deadlines, 1 second by default
+   * @param wheelSize number of buckets of the timer, 512 by default
+   * @param threadFactory factory of the timer thread
+   * @param expiryExecutor runs the expiry actions, a thread per task executor by default
+   */
+  @Builder
+  public SparkAppWatchdog(
+      Map<K8StackableSparkController.Phase, Duration> budgets,
+      K8StackableSparkController controller,
+      ExpiryAction expiryAction,
+      long tickMillis,
+      int wheelSize,
+      ThreadFactory threadFactory,
+      Executor expiryExecutor) {
+    if (controller == null && expiryAction == null) {
+      throw new IllegalArgumentException("A controller or an expiry action is required");
+    }
+    this.budgets =
+        budgets == null || budgets.isEmpty() ? Collections.emptyMap() : new EnumMap<>(budgets);
+    this.expiryAction =
+        expiryAction != null
+            ? expiryAction
+            : (appName, phase, budget) -> controller.stopApplication(appName);
+    this.ownedExecutor =
+        expiryExecutor == null
+            ? VirtualThreads.newThreadPerTaskExecutor("spark-watchdog-expiry-")
+            : null;
+    this.timer =
+        new HashedWheelTimer(
+            tickMillis > 0 ? tickMillis : DEFAULT_TICK_MILLIS,
+            wheelSize > 0 ? wheelSize : DEFAULT_WHEEL_SIZE,
+            threadFactory != null
+                ? threadFactory
+                : VirtualThreads.threadFactory("spark-watchdog-"),
+            expiryExecutor != null ? expiryExecutor : ownedExecutor);
+  }
+
+  @Override
+  public synchronized void onEvent(
+      StackableSparkWatcher.EventType eventType,
+      String appName,
+      K8StackableSparkController.Phase phase,
+      Object payload) {
+    if (eventType == StackableSparkWatcher.EventType.BOOKMARK) {
+      return;
+    }
+    if (eventType == StackableSparkWatcher.EventType.DELETED
+        || phase == K8StackableSparkController.Phase.SUCCEEDED
+        || phase == K8StackableSparkController.Phase.FAILED) {
+      cancel(appName);
+      return;
+    }
+    K8StackableSparkController.Phase budgetPhase = budgetPhase(phase);
+    Deadline current = deadlines.get(appName);
+    if (current != null && current.phase == budgetPhase) {
+      // Still in the same phase, the deadline is kept
+      return;
+    }
+    cancel(appName);
+    Duration budget = budget(budgetPhase, payload);
+    if (budget != null) {
+      long delayMillis = budget.toMillis() - elapsedMillis(budgetPhase, payload);
+      // stored before scheduling, expire waits for the lock if the deadline is already due
+      Deadline deadline = new Deadline(budgetPhase, budget);
+      deadlines.put(appName, deadline);
+      deadline.timeout =
+          timer.schedule(
+              () -> expire(appName, deadline), Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Applications without a phase yet are waiting to be scheduled, as pending ones. */
+  private static K8StackableSparkController.Phase budgetPhase(
+      K8StackableSparkController.Phase phase) {
+    return phase == K8StackableSparkController.Phase.EMPTY
+            || phase == K8StackableSparkController.Phase.INITIATING
+        ? K8StackableSparkController.Phase.PENDING
+        : phase;
+  }
+
+  /** Time already spent in the phase, from the creation timestamp for pending applications. */
+  private static long elapsedMillis(K8StackableSparkController.Phase phase, Object payload) {
+    if (phase != K8StackableSparkController.Phase.PENDING || !(payload instanceof AbstractMap)) {
+      return 0;
+    }
+    Object metadata = ((AbstractMap<String, Object>) payload).get("metadata");
+    if (!(metadata instanceof AbstractMap)) {
+      return 0;
+    }
+    Object creationTimestamp = ((AbstractMap<String, Object>) metadata).get("creationTimestamp");
+    if (creationTimestamp == null) {
+      return 0;
+    }
+    try {
+      Instant created = OffsetDateTime.parse(creationTimestamp.toString()).toInstant();
+      return Math.max(0, Duration.between(created, Instant.now()).toMillis());
+    } catch (DateTimeParseException ex) {
+      log.warn("Invalid creationTimestamp {}", creationTimestamp);
+      return 0;
+    }
+  }
+
+  /** Runs the expiry action if the deadline is still the current one of the application. */
+  private void expire(String appName, Deadline deadline) {
+    synchronized (this) {
+      if (!deadlines.remove(appName, deadline)) {
+        return;
+      }
+    }
+    log.warn(
+        "Application {} exceeded its {} budget of {}", appName, deadline.phase, deadline.budget);
+    expiryAction.onExpiry(appName, deadline.phase, deadline.budget);
+  }
+
+  private void cancel(String appName) {
+    Deadline deadline = deadlines.remove(appName);
+    if (deadline != null) {
+      deadline.timeout.cancel();
+    }
+  }
+
+  /** Budget of the application for a phase, annotations take precedence over labels. */
+  private Duration budget(K8StackableSparkController.Phase phase, Object payload) {
+    String key = TIMEOUT_KEY_PREFIX + phase.name().toLowerCase(Locale.ENGLISH) + TIMEOUT_KEY_SUFFIX;
+    if (payload instanceof AbstractMap) {
+      Object metadata = ((AbstractMap<String, Object>) payload).get("metadata");
+      if (metadata instanceof AbstractMap) {
+        String value = getString((AbstractMap<String, Object>) metadata, "annotations", key);
+        if (value == null) {
+          value = getString((AbstractMap<String, Object>) metadata, "labels", key);
+        }
+        if (value != null) {
+          try {
+            return parseDuration(value);
+          } catch (IllegalArgumentException | DateTimeParseException ex) {
+            log.warn("Invalid {} value {}, using default budget", key, value);
+          }
+        }
+      }
+    }
+    return budgets.get(phase);
+  }
+
+  private static String getString(AbstractMap<String, Object> metadata, String field, String key) {
+    Object values = metadata.get(field);
+    if (values instanceof AbstractMap) {
+      Object value = ((AbstractMap<String, Object>) values).get(key);
+      return value != null ? value.toString() : null;
+    }
+    return null;
+  }
+
+  /** Parses durations like 30s, 15m, 6h, 2d or ISO-8601 like PT6H. */
+  static Duration parseDuration(String value) {
+    if (value.startsWith("P") || value.startsWith("p")) {
+      return Duration.parse(value);
+    }
+    Matcher matcher = DURATION_PATTERN.matcher(value.trim());
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException("Invalid duration " + value);
+    }
+    long amount = Long.parseLong(matcher.group(1));
+    switch (matcher.group(2)) {
+      case "ms":
+        return Duration.ofMillis(amount);
+      case "s":
+        return Duration.ofSeconds(amount);
+      case "m":
+        return Duration.ofMinutes(amount);
+      case "h":
+        return Duration.ofHours(amount);
+      default:
+        return Duration.ofDays(amount);
+    }
+  }
+
+  /** Number of applications with a pending deadline. */
+  public synchronized int size() {
+    return deadlines.size();
+  }
+
+  @Override
+  public void close() {
+    timer.close();
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.Value;
+
+import static org.gbif.stackable.SparkAppUtils.getAppName;
+import static org.gbif.stackable.SparkAppUtils.getPhase;
+
+/**
+ * Events listener that keeps the latest state of the applications seen by a watcher, so the
+ * controller can check them without a request to K8.
+ *
+ * <p>The applications created or patched by the controller are also stored, so the cache is not
+ * behind its own writes. When the watcher re-lists, e.g. after a 410 Gone, the cache is cleared:
+ * deletions missed while disconnected would otherwise leave stale entries.
+ */
+public class SparkApplicationCache implements StackableSparkWatcher.EventsListener {
+
+  /** Cached state of an application. */
+  @Value
+  public static class Entry {
+    K8StackableSparkController.Phase phase;
+    String contentHash;
+    AbstractMap<String, Object> application;
+  }
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  @Override
+  public void onEvent(
+      StackableSparkWatcher.EventType eventType,
+      String appName,
+      K8StackableSparkController.Phase phase,
+      Object payload) {
+    if (eventType == StackableSparkWatcher.EventType.BOOKMARK) {
+      return;
+    }
+    if (eventType == StackableSparkWatcher.EventType.DELETED) {
+      entries.remove(appName);
+    } else if (payload instanceof AbstractMap) {
+      AbstractMap<String, Object> application = (AbstractMap<String, Object>) payload;
+      entries.put(appName, new Entry(phase, getContentHash(application), application));
+    }
+  }
+
+  @Override
+  public void onRelist() {
+    entries.clear();
+  }
+
+  /** Stores an application returned by K8, e.g. by a create or a patch. */
+  public void put(AbstractMap<String, Object> application) {
+    String appName = getAppName(application);
+    if (appName != null) {
+      entries.put(
+          appName, new Entry(getPhase(application), getContentHash(application), application));
+    }
+  }
+
+  /** Removes an application, e.g. after deleting it. */
+  public void remove(String appName) {
+    entries.remove(appName);
+  }
+
+  /** Cached state of an application, null if not known. */
+  public Entry get(String appName) {
+    return entries.get(appName);
+  }
+
+  /** Number of cached applications. */
+  public int size() {
+    return entries.size();
+  }
+
+  /** Reads the {@link SparkCrd#CONTENT_HASH_ANNOTATION} of an application. */
+  static String getContentHash(AbstractMap<String, Object> application) {
+    Object metadata = application.get("metadata");
+    if (metadata instanceof AbstractMap) {
+      Object annotations = ((AbstractMap<String, Object>) metadata).get("annotations");
+      if (annotations instanceof AbstractMap) {
+        Object hash =
+            ((AbstractMap<String, Object>) annotations).get(SparkCrd.CONTENT_HASH_ANNOTATION);
+        return hash != null ? hash.toString() : null;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import io.kubernetes.client.custom.Quantity;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * Generates tuned sparkConf settings from the resources of a {@link SparkCrd}.
+ *
+ * <p>A {@link Profile} derives memory overhead, shuffle partitions, GC, serializer and adaptive
+ * query execution settings from the driver and executor resources and the number of executors.
+ * The settings are merged into {@link SparkCrd.Spec#getSparkConf()}, user overrides are applied
+ * last and all the changes are reported. Memory overheads are never lowered: a larger value already
+ * set is kept.
+ */
+public class SparkConfProfiles {
+
+  private static final String KRYO_SERIALIZER = "org.apache.spark.serializer.KryoSerializer";
+
+  /** Minimum memory overhead used by Spark, in MiB. */
+  private static final long MIN_MEMORY_OVERHEAD_MIB = 384;
+
+  private static final long MIB = 1024 * 1024;
+
+  /** Spark sizes, without unit memory overheads are in MiB. */
+  private static final Pattern SIZE_PATTERN = Pattern.compile("(\\d+)(b|k|kb|m|mb|g|gb|t|tb)?");
+
+  /** Tuning profiles. */
+  public enum Profile {
+    /** Large shuffles: more overhead and partitions, bigger shuffle buffers. */
+    SHUFFLE_HEAVY("shuffle-heavy", 0.2, 3, "-XX:+UseG1GC -XX:InitiatingHeapOccupancyPercent=35"),
+
+    /** Batch SQL over large tables: larger input splits and adaptive partition sizing. */
+    SQL_BACKFILL("sql-backfill", 0.15, 2, "-XX:+UseG1GC -XX:InitiatingHeapOccupancyPercent=35"),
+
+    /** Short jobs: no locality wait and short GC pauses. */
+    LOW_LATENCY("low-latency", 0.1, 1, "-XX:+UseG1GC -XX:MaxGCPauseMillis=100");
+
+    @Getter private final String profileName;
+
+    /** Fraction of the container memory reserved as memory overhead. */
+    private final double memoryOverheadFactor;
+
+    /** Shuffle partitions per executor core. */
+    private final int partitionsPerCore;
+
+    private final String gcOptions;
+
+    Profile(
+        String profileName, double memoryOverheadFactor, int partitionsPerCore, String gcOptions) {
+      this.profileName = profileName;
+      this.memoryOverheadFactor = memoryOverheadFactor;
+      this.partitionsPerCore = partitionsPerCore;
+      this.gcOptions = gcOptions;
+    }
+
+    /** Gets a profile by its name, e.g. "shuffle-heavy". */
+    public static Profile fromName(String profileName) {
+      return Arrays.stream(values())
+          .filter(p -> p.profileName.equalsIgnoreCase(profileName))
+          .findFirst()
+          .orElseThrow(() -> new IllegalArgumentException("Unknown profile " + profileName));
+    }
+  }
+
+  /** A sparkConf setting changed by a profile, oldValue is null if the setting was not present. */
+  @Value
+  public static class Change {
+    String key;
+    String oldValue;
+    String newValue;
+  }
+
+  /** The tuned SparkCrd and the changes made to its sparkConf. */
+  @Value
+  public static class Result {
+    SparkCrd sparkCrd;
+    List<Change> changes;
+  }
+
+  private SparkConfProfiles() {}
+
+  /** Applies a profile to a SparkCrd. */
+  public static Result apply(@NonNull SparkCrd sparkCrd, @NonNull Profile profile) {
+    return apply(sparkCrd, profile, Collections.emptyMap());
+  }
+
+  /** Applies a profile to a SparkCrd, the overrides take precedence over the profile settings. */
+  public static Result apply(
+      @NonNull SparkCrd sparkCrd, @NonNull Profile profile, Map<String, String> overrides) {
+    SparkCrd.Spec spec = sparkCrd.getSpec();
+    Map<String, String> sparkConf = new LinkedHashMap<>();
+    if (spec.getSparkConf() != null) {
+      sparkConf.putAll(spec.getSparkConf());
+    }
+    List<Change> changes = new ArrayList<>();
+    merge(sparkConf, settings(spec, profile), changes);
+    if (overrides != null) {
+      merge(sparkConf, overrides, changes);
+    }
+    SparkCrd tuned =
+        sparkCrd.toBuilder().spec(spec.toBuilder().sparkConf(sparkConf).build()).build();
+    return new Result(tuned, changes);
+  }
+
+  private static void merge(
+      Map<String, String> sparkConf, Map<String, String> settings, List<Change> changes) {
+    settings.forEach(
+        (key, value) -> {
+          String oldValue = sparkConf.put(key, value);
+          if (!Objects.equals(oldValue, value)) {
+            changes.removeIf(change -> change.getKey().equals(key));
+            changes.add(new Change(key, oldValue, value));
+          }
+        });
+  }
+
+  /** Settings derived from the spec resources for a profile. */
+  static Map<String, String> settings(SparkCrd.Spec spec, Profile profile) {
+    Map<String, String> settings = new LinkedHashMap<>();
+    Map<String, String> sparkConf =
+        spec.getSparkConf() != null ? spec.getSparkConf() : Collections.emptyMap();
+
+    SparkCrd.Resources driverResources =
+        spec.getDriver() != null ? spec.getDriver().getResources() : null;
+    SparkCrd.Resources executorResources =
+        spec.getExecutor() != null ? spec.getExecutor().getResources() : null;
+
+    putMemoryOverhead(
+        settings, sparkConf, "spark.driver.memoryOverhead", driverResources, profile);
+    putMemoryOverhead(
+        settings, sparkConf, "spark.executor.memoryOverhead", executorResources, profile);
+    Integer executorCores = cores(executorResources);
+    int instances = spec.getExecutor() != null ? spec.getExecutor().getInstances() : 0;
+    if (executorCores != null && instances > 0) {
+      settings.put(
+          "spark.sql.shuffle.partitions",
+          String.valueOf(instances * executorCores * profile.partitionsPerCore));
+    }
+
+    settings.put(
+        "spark.driver.extraJavaOptions",
+        withGcOptions(sparkConf.get("spark.driver.extraJavaOptions"), profile.gcOptions));
+    settings.put(
+        "spark.executor.extraJavaOptions",
+        withGcOptions(sparkConf.get("spark.executor.extraJavaOptions"), profile.gcOptions));
+
+    settings.put("spark.serializer", KRYO_SERIALIZER);
+    settings.put("spark.sql.adaptive.enabled", "true");
+    settings.put("spark.sql.adaptive.coalescePartitions.enabled", "true");
+
+    switch (profile) {
+      case SHUFFLE_HEAVY:
+        settings.put("spark.kryoserializer.buffer.max", "512m");
+        settings.put("spark.sql.adaptive.skewJoin.enabled", "true");
+        settings.put("spark.shuffle.compress", "true");
+        settings.put("spark.shuffle.spill.compress", "true");
+        settings.put("spark.shuffle.file.buffer", "1m");
+        settings.put("spark.reducer.maxSizeInFlight", "96m");
+        settings.put("spark.shuffle.io.maxRetries", "10");
+        break;
+      case SQL_BACKFILL:
+        settings.put("spark.kryoserializer.buffer.max", "512m");
+        settings.put("spark.sql.adaptive.skewJoin.enabled", "true");
+        settings.put("spark.sql.files.maxPartitionBytes", "256m");
+        settings.put("spark.sql.adaptive.advisoryPartitionSizeInBytes", "256m");
+        break;
+      case LOW_LATENCY:
+        settings.put("spark.locality.wait", "0s");
+        settings.put("spark.sql.adaptive.advisoryPartitionSizeInBytes", "32m");
+        break;
+      default:
+        break;
+    }
+    return settings;
+  }
+
+  /** Sets the memory overhead derived from the memory limit, a larger existing value is kept. */
+  private static void putMemoryOverhead(
+      Map<String, String> settings,
+      Map<String, String> sparkConf,
+      String key,
+      SparkCrd.Resources resources,
+      Profile profile) {
+    Long memoryLimit = memoryLimitMiB(resources);
+    if (memoryLimit == null) {
+      return;
+    }
+    long overhead =
+        Math.max(MIN_MEMORY_OVERHEAD_MIB, (long) (memoryLimit * profile.memoryOverheadFactor));
+    Long existing = sizeMiB(sparkConf.get(key));
+    if (existing == null || existing < overhead) {
+      settings.put(key, String.valueOf(overhead));
+    }
+  }
+
+  /** Parses a Spark size in MiB, e.g. 4096, 512m or 4g, null if absent or not valid. */
+  private static Long sizeMiB(String value) {
+    if (value == null) {
+      return null;
+    }
+    Matcher matcher = SIZE_PATTERN.matcher(value.trim().toLowerCase(Locale.ENGLISH));
+    if (!matcher.matches()) {
+      return null;
+    }
+    long amount = Long.parseLong(matcher.group(1));
+    String unit = matcher.group(2);
+    if (unit == null || unit.startsWith("m")) {
+      return amount;
+    }
+    if (unit.startsWith("k")) {
+      return amount / 1024;
+    }
+    if (unit.startsWith("g")) {
+      return amount * 1024;
+    }
+    if (unit.startsWith("t")) {
+      return amount * 1024 * 1024;
+    }
+    return amount / MIB;
+  }
+
+  /** Replaces the GC flags of JVM options, other options are kept. */
+  private static String withGcOptions(String javaOptions, String gcOptions) {
+    if (javaOptions == null || javaOptions.trim().isEmpty()) {
+      return gcOptions;
+    }
+    String otherOptions =
+        Arrays.stream(javaOptions.trim().split("\\s+"))
+            .filter(option -> !isGcOption(option))
+            .collect(Collectors.joining(" "));
+    return otherOptions.isEmpty() ? gcOptions : otherOptions + " " + gcOptions;
+  }
+
+  /** Collector selection, its thresholds and every CMS option, removed from JDK 14. */
+  private static boolean isGcOption(String option) {
+    return option.matches("-XX:[+-]Use\\w*GC")
+        || option.matches("-XX:[+-]?\\w*CMS\\w*(=.*)?")
+        || option.startsWith("-XX:MaxGCPauseMillis=")
+        || option.startsWith("-XX:InitiatingHeapOccupancyPercent=");
+  }
+
+  private static Long memoryLimitMiB(SparkCrd.Resources resources) {
+    if (resources == null
+        || resources.getMemory() == null
+        || resources.getMemory().getLimit() == null) {
+      return null;
+    }
+    BigDecimal bytes = Quantity.fromString(resources.getMemory().getLimit()).getNumber();
+    return bytes.divide(BigDecimal.valueOf(MIB), 0, RoundingMode.DOWN).longValue();
+  }
+
+  /** Executor cores taken from the cpu max, rounded up. */
+  private static Integer cores(SparkCrd.Resources resources) {
+    if (resources == null || resources.getCpu() == null || resources.getCpu().getMax() == null) {
+      return null;
+    }
+    BigDecimal cores = Quantity.fromString(resources.getCpu().getMax()).getNumber();
+    return Math.max(1, cores.setScale(0, RoundingMode.CEILING).intValue());
+  }
+}
@@ -16,12 +16,23 @@
 package org.gbif.stackable;
 
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
 import lombok.*;
@@ -36,6 +47,16 @@ public class SparkCrd implements ToBuilder {
 
   private static final ObjectMapper MAPPER = new ObjectMapper(new YAMLFactory());
 
+  /** Annotation that stores the {@link #contentHash()} of a submitted application. */
+  public static final String CONTENT_HASH_ANNOTATION = "stackable-spark.gbif.org/content-hash";
+
+  /** Mapper with a stable output: sorted properties and map keys, no nulls. */
+  private static final ObjectMapper CANONICAL_MAPPER =
+      new ObjectMapper()
+          .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
+          .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+          .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
   @Builder.Default private String apiVersion = "spark.stackable.tech/v1alpha1";
 
   @Builder.Default private String kind = "SparkApplication";
@@ -59,6 +80,49 @@ public class SparkCrd implements ToBuilder {
     return MAPPER.readValue(yaml, SparkCrd.class);
   }
 
+  /**
+   * SHA-256 of the canonical JSON of this SparkCrd, excluding the {@link #CONTENT_HASH_ANNOTATION}.
+   * Equal specs produce the same hash regardless of the order of maps or unset fields.
+   */
+  @SneakyThrows
+  public String contentHash() {
+    SparkCrd canonical = this;
+    if (metadata != null
+        && metadata.getAnnotations() != null
+        && metadata.getAnnotations().containsKey(CONTENT_HASH_ANNOTATION)) {
+      Map<String, String> annotations = new TreeMap<>(metadata.getAnnotations());
+      annotations.remove(CONTENT_HASH_ANNOTATION);
+      canonical =
+          toBuilder()
+              .metadata(
+                  metadata.toBuilder()
+                      .annotations(annotations.isEmpty() ? null : annotations)
+                      .build())
+              .build();
+    }
+    byte[] digest =
+        MessageDigest.getInstance("SHA-256")
+            .digest(CANONICAL_MAPPER.writeValueAsBytes(canonical));
+    StringBuilder hash = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      hash.append(String.format("%02x", b));
+    }
+    return hash.toString();
+  }
+
+  /** Returns a copy with the {@link #contentHash()} stored in the metadata annotations. */
+  public SparkCrd withContentHash() {
+    Metadata currentMetadata = metadata != null ? metadata : new Metadata();
+    Map<String, String> annotations = new TreeMap<>();
+    if (currentMetadata.getAnnotations() != null) {
+      annotations.putAll(currentMetadata.getAnnotations());
+    }
+    annotations.put(CONTENT_HASH_ANNOTATION, contentHash());
+    return toBuilder()
+        .metadata(currentMetadata.toBuilder().annotations(annotations).build())
+        .build();
+  }
+
   @Data
   @Builder(toBuilder = true)
   @Jacksonized
@@ -71,6 +135,12 @@ public class SparkCrd implements ToBuilder {
 
     /** K8 namespace. */
     private String namespace;
+
+    /** Labels of the custom resource. */
+    private Map<String, String> labels;
+
+    /** Annotations of the custom resource. */
+    private Map<String, String> annotations;
   }
 
   @Data
@@ -290,6 +360,15 @@ public class SparkCrd implements ToBuilder {
 
       private ConfigMap configMap;
 
+      /** Temporary directory that shares the Pod lifetime. */
+      private EmptyDir emptyDir;
+
+      /** Directory of the host node. */
+      private HostPath hostPath;
+
+      /** Persistent volume claim created and deleted with the Pod. */
+      private Ephemeral ephemeral;
+
       @Data
       @Builder(toBuilder = true)
       @Jacksonized
@@ -300,6 +379,80 @@ public class SparkCrd implements ToBuilder {
         /** The persistent volume claim name backing the volume. */
         private String claimName;
       }
+
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class EmptyDir implements ToBuilder {
+
+        /** Memory for a RAM-backed tmpfs, the node default storage if empty. */
+        private String medium;
+
+        /** Maximum size, e.g. 10Gi. With medium Memory it counts against the container memory. */
+        private String sizeLimit;
+      }
+
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class HostPath implements ToBuilder {
+
+        /** Path of the directory on the host. */
+        private String path;
+
+        /** Type of the path, e.g. DirectoryOrCreate. */
+        private String type;
+      }
+
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class Ephemeral implements ToBuilder {
+
+        private VolumeClaimTemplate volumeClaimTemplate;
+
+        @Data
+        @Builder(toBuilder = true)
+        @Jacksonized
+        @NoArgsConstructor
+        @AllArgsConstructor
+        public static class VolumeClaimTemplate implements ToBuilder {
+
+          private ClaimSpec spec;
+        }
+
+        @Data
+        @Builder(toBuilder = true)
+        @Jacksonized
+        @NoArgsConstructor
+        @AllArgsConstructor
+        public static class ClaimSpec implements ToBuilder {
+
+          /** E.g. ReadWriteOnce. */
+          private List<String> accessModes;
+
+          private String storageClassName;
+
+          private ClaimResources resources;
+        }
+
+        @Data
+        @Builder(toBuilder = true)
+        @Jacksonized
+        @NoArgsConstructor
+        @AllArgsConstructor
+        public static class ClaimResources implements ToBuilder {
+
+          /** Requested resources, e.g. storage: 100Gi. */
+          private Map<String, String> requests;
+        }
+      }
     }
 
     @Data
@@ -382,7 +535,7 @@ public class SparkCrd implements ToBuilder {
        * href="https://docs.stackable.tech/home/nightly/spark-k8s/usage-guide/pod-placement.html">Pod
        * placement</a>.
        */
-      private String affinity;
+      private Affinity affinity;
 
       /**
        * Logging aggregation for the driver Pod. See <a
@@ -400,7 +553,10 @@ public class SparkCrd implements ToBuilder {
     @AllArgsConstructor
     public static class Executor implements ToBuilder {
 
-      /** Number of executor instances launched for this job. */
+      /**
+       * Number of executor instances launched for this job. With {@link DynamicAllocation} it is
+       * the initial number of executors.
+       */
       private int instances;
 
       /** Resources specification for the component Pod. */
@@ -410,11 +566,11 @@ public class SparkCrd implements ToBuilder {
       private List<VolumeMount> volumeMounts;
 
       /**
-       * Driver Pod placement affinity. See <a
+       * Executor Pod placement affinity. See <a
        * href="https://docs.stackable.tech/home/nightly/spark-k8s/usage-guide/pod-placement.html">Pod
        * placement</a>.
        */
-      private String affinity;
+      private Affinity affinity;
 
       /**
        * Logging aggregation for the driver Pod. See <a
@@ -425,6 +581,489 @@ public class SparkCrd implements ToBuilder {
       private PodOverrides podOverrides;
     }
 
+    /**
+     * Pod placement affinity, follows the K8 <a
+     * href="https://kubernetes.io/docs/concepts/scheduling-eviction/assign-pod-node/">affinity</a>
+     * model. The static methods create the affinities for common placement policies.
+     */
+    @Data
+    @Builder(toBuilder = true)
+    @Jacksonized
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Affinity implements ToBuilder {
+
+      /** Node label set by K8 to the node name. */
+      public static final String HOSTNAME_TOPOLOGY_KEY = "kubernetes.io/hostname";
+
+      private NodeAffinity nodeAffinity;
+
+      private PodAffinity podAffinity;
+
+      private PodAffinity podAntiAffinity;
+
+      /** Node labels the Pod must match. */
+      private Map<String, String> nodeSelector;
+
+      /** Prefers nodes with a label, e.g. the nodes that run HDFS datanodes. */
+      public static Affinity preferNodesWithLabel(int weight, String key, String... values) {
+        return Affinity.builder()
+            .nodeAffinity(
+                NodeAffinity.builder()
+                    .preferredDuringSchedulingIgnoredDuringExecution(
+                        Collections.singletonList(
+                            PreferredSchedulingTerm.builder()
+                                .weight(weight)
+                                .preference(NodeSelectorTerm.of(key, values))
+                                .build()))
+                    .build())
+            .build();
+      }
+
+      /** Only schedules on nodes with a label. */
+      public static Affinity requireNodesWithLabel(String key, String... values) {
+        return Affinity.builder()
+            .nodeAffinity(
+                NodeAffinity.builder()
+                    .requiredDuringSchedulingIgnoredDuringExecution(
+                        NodeSelector.builder()
+                            .nodeSelectorTerms(
+                                Collections.singletonList(NodeSelectorTerm.of(key, values)))
+                            .build())
+                    .build())
+            .build();
+      }
+
+      /** Prefers to place the Pod in the same topology domain as the Pods matching the labels. */
+      public static Affinity preferNearPods(
+          int weight, Map<String, String> podLabels, String topologyKey) {
+        return Affinity.builder()
+            .podAffinity(PodAffinity.preferred(weight, podLabels, topologyKey))
+            .build();
+      }
+
+      /**
+       * Prefers to spread Pods matching the labels, e.g. the executors of an application, across
+       * the topology domains, across nodes by default.
+       */
+      public static Affinity spreadPods(
+          int weight, Map<String, String> podLabels, String topologyKey) {
+        return Affinity.builder()
+            .podAntiAffinity(
+                PodAffinity.preferred(
+                    weight, podLabels, topologyKey != null ? topologyKey : HOSTNAME_TOPOLOGY_KEY))
+            .build();
+      }
+
+      /** Combines two affinities, the terms of both are kept. */
+      public Affinity and(Affinity other) {
+        return Affinity.builder()
+            .nodeAffinity(NodeAffinity.merge(nodeAffinity, other.nodeAffinity))
+            .podAffinity(PodAffinity.merge(podAffinity, other.podAffinity))
+            .podAntiAffinity(PodAffinity.merge(podAntiAffinity, other.podAntiAffinity))
+            .nodeSelector(mergeMaps(nodeSelector, other.nodeSelector))
+            .build();
+      }
+
+      private static <T> List<T> concat(List<T> list1, List<T> list2) {
+        if (list1 == null) {
+          return list2;
+        }
+        if (list2 == null) {
+          return list1;
+        }
+        List<T> result = new ArrayList<>(list1);
+        result.addAll(list2);
+        return result;
+      }
+
+      private static Map<String, String> mergeMaps(
+          Map<String, String> map1, Map<String, String> map2) {
+        if (map1 == null) {
+          return map2;
+        }
+        if (map2 == null) {
+          return map1;
+        }
+        Map<String, String> result = new LinkedHashMap<>(map1);
+        result.putAll(map2);
+        return result;
+      }
+
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class NodeAffinity implements ToBuilder {
+
+        private NodeSelector requiredDuringSchedulingIgnoredDuringExecution;
+
+        private List<PreferredSchedulingTerm> preferredDuringSchedulingIgnoredDuringExecution;
+
+        static NodeAffinity merge(NodeAffinity affinity1, NodeAffinity affinity2) {
+          if (affinity1 == null || affinity2 == null) {
+            return affinity1 != null ? affinity1 : affinity2;
+          }
+          NodeSelector required1 = affinity1.requiredDuringSchedulingIgnoredDuringExecution;
+          NodeSelector required2 = affinity2.requiredDuringSchedulingIgnoredDuringExecution;
+          NodeSelector required =
+              required1 == null || required2 == null
+                  ? (required1 != null ? required1 : required2)
+                  : NodeSelector.builder()
+                      .nodeSelectorTerms(
+                          concat(required1.nodeSelectorTerms, required2.nodeSelectorTerms))
+                      .build();
+          return NodeAffinity.builder()
+              .requiredDuringSchedulingIgnoredDuringExecution(required)
+              .preferredDuringSchedulingIgnoredDuringExecution(
+                  concat(
+                      affinity1.preferredDuringSchedulingIgnoredDuringExecution,
+                      affinity2.preferredDuringSchedulingIgnoredDuringExecution))
+              .build();
+        }
+      }
+
+      /** Node selector terms are ORed. */
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class NodeSelector implements ToBuilder {
+
+        private List<NodeSelectorTerm> nodeSelectorTerms;
+      }
+
+      /** Requirements of a term are ANDed. */
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class NodeSelectorTerm implements ToBuilder {
+
+        /** Requirements on node labels. */
+        private List<Requirement> matchExpressions;
+
+        /** Requirements on node fields. */
+        private List<Requirement> matchFields;
+
+        /** Term of nodes having a label with any of the values, or just the label if no values. */
+        static NodeSelectorTerm of(String key, String... values) {
+          return NodeSelectorTerm.builder()
+              .matchExpressions(Collections.singletonList(Requirement.of(key, values)))
+              .build();
+        }
+      }
+
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class PreferredSchedulingTerm implements ToBuilder {
+
+        /** Weight from 1 to 100. */
+        private int weight;
+
+        private NodeSelectorTerm preference;
+      }
+
+      /** Used for both podAffinity and podAntiAffinity. */
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class PodAffinity implements ToBuilder {
+
+        private List<PodAffinityTerm> requiredDuringSchedulingIgnoredDuringExecution;
+
+        private List<WeightedPodAffinityTerm> preferredDuringSchedulingIgnoredDuringExecution;
+
+        static PodAffinity preferred(
+            int weight, Map<String, String> podLabels, String topologyKey) {
+          return PodAffinity.builder()
+              .preferredDuringSchedulingIgnoredDuringExecution(
+                  Collections.singletonList(
+                      WeightedPodAffinityTerm.builder()
+                          .weight(weight)
+                          .podAffinityTerm(
+                              PodAffinityTerm.builder()
+                                  .labelSelector(
+                                      LabelSelector.builder().matchLabels(podLabels).build())
+                                  .topologyKey(topologyKey)
+                                  .build())
+                          .build()))
+              .build();
+        }
+
+        static PodAffinity merge(PodAffinity affinity1, PodAffinity affinity2) {
+          if (affinity1 == null || affinity2 == null) {
+            return affinity1 != null ? affinity1 : affinity2;
+          }
+          return PodAffinity.builder()
+              .requiredDuringSchedulingIgnoredDuringExecution(
+                  concat(
+                      affinity1.requiredDuringSchedulingIgnoredDuringExecution,
+                      affinity2.requiredDuringSchedulingIgnoredDuringExecution))
+              .preferredDuringSchedulingIgnoredDuringExecution(
+                  concat(
+                      affinity1.preferredDuringSchedulingIgnoredDuringExecution,
+                      affinity2.preferredDuringSchedulingIgnoredDuringExecution))
+              .build();
+        }
+      }
+
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class PodAffinityTerm implements ToBuilder {
+
+        /** Pods this term applies to. */
+        private LabelSelector labelSelector;
+
+        /** Namespaces of the Pods, the namespace of the Pod if empty. */
+        private List<String> namespaces;
+
+        /** Node label that defines the topology domain, e.g. kubernetes.io/hostname. */
+        private String topologyKey;
+      }
+
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class WeightedPodAffinityTerm implements ToBuilder {
+
+        /** Weight from 1 to 100. */
+        private int weight;
+
+        private PodAffinityTerm podAffinityTerm;
+      }
+
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class LabelSelector implements ToBuilder {
+
+        private Map<String, String> matchLabels;
+
+        private List<Requirement> matchExpressions;
+      }
+
+      /** Requirement on a label, operator is one of In, NotIn, Exists, DoesNotExist, Gt or Lt. */
+      @Data
+      @Builder(toBuilder = true)
+      @Jacksonized
+      @NoArgsConstructor
+      @AllArgsConstructor
+      public static class Requirement implements ToBuilder {
+
+        private String key;
+
+        private String operator;
+
+        private List<String> values;
+
+        /** In the values, or Exists if there are no values. */
+        static Requirement of(String key, String... values) {
+          return values.length == 0
+              ? Requirement.builder().key(key).operator("Exists").build()
+              : Requirement.builder().key(key).operator("In").values(Arrays.asList(values)).build();
+        }
+      }
+    }
+
+    /**
+     * Dynamic allocation of executors. It is not part of the CRD, {@link #applyTo(SparkCrd)}
+     * translates it into sparkConf settings, the executor instances and the YuniKorn executor task
+     * group size. See <a
+     * href="https://spark.apache.org/docs/latest/job-scheduling.html#dynamic-resource-allocation">Dynamic
+     * resource allocation</a>.
+     */
+    @Data
+    @Builder(toBuilder = true)
+    @Jacksonized
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class DynamicAllocation implements ToBuilder {
+
+      static final String PREFIX = "spark.dynamicAllocation.";
+
+      private static final Pattern TIME_PATTERN = Pattern.compile("\\d+(us|ms|s|m|min|h|d)?");
+
+      /** Lower bound of executors, executors are removed down to this number when idle. */
+      @Builder.Default private int minExecutors = 0;
+
+      /** Upper bound of executors. */
+      private int maxExecutors;
+
+      /** Executors requested at start, minExecutors if not set. */
+      private Integer initialExecutors;
+
+      /**
+       * Tracks shuffle files to keep executors holding them alive, required on K8 since there is no
+       * external shuffle service.
+       */
+      @Builder.Default private boolean shuffleTracking = true;
+
+      /** Time after which executors holding shuffle data can be removed, e.g. 30min. */
+      private String shuffleTrackingTimeout;
+
+      /** Time after which idle executors are removed, e.g. 60s. */
+      private String executorIdleTimeout;
+
+      /** Time after which idle executors with cached data are removed. */
+      private String cachedExecutorIdleTimeout;
+
+      /** Time that tasks must be pending before new executors are requested, e.g. 1s. */
+      private String schedulerBacklogTimeout;
+
+      /** Returns the list of configuration errors, empty if valid. */
+      public List<String> validate() {
+        List<String> errors = new ArrayList<>();
+        if (minExecutors < 0) {
+          errors.add("minExecutors must be >= 0");
+        }
+        if (maxExecutors < 1) {
+          errors.add("maxExecutors must be >= 1");
+        }
+        if (maxExecutors < minExecutors) {
+          errors.add("maxExecutors must be >= minExecutors");
+        }
+        if (initialExecutors != null
+            && (initialExecutors < minExecutors || initialExecutors > maxExecutors)) {
+          errors.add("initialExecutors must be between minExecutors and maxExecutors");
+        }
+        if (!shuffleTracking) {
+          errors.add("shuffleTracking is required on Kubernetes, no external shuffle service");
+        }
+        validateTime("shuffleTrackingTimeout", shuffleTrackingTimeout, errors);
+        validateTime("executorIdleTimeout", executorIdleTimeout, errors);
+        validateTime("cachedExecutorIdleTimeout", cachedExecutorIdleTimeout, errors);
+        validateTime("schedulerBacklogTimeout", schedulerBacklogTimeout, errors);
+        return errors;
+      }
+
+      private static void validateTime(String name, String value, List<String> errors) {
+        if (value != null && !TIME_PATTERN.matcher(value).matches()) {
+          errors.add(name + " is not a valid time: " + value);
+        }
+      }
+
+      /** Executors started with the application. */
+      public int effectiveInitialExecutors() {
+        return initialExecutors != null ? initialExecutors : minExecutors;
+      }
+
+      /** Spark settings that enable dynamic allocation. */
+      public Map<String, String> toSparkConf() {
+        Map<String, String> sparkConf = new LinkedHashMap<>();
+        sparkConf.put(PREFIX + "enabled", "true");
+        sparkConf.put(PREFIX + "minExecutors", String.valueOf(minExecutors));
+        sparkConf.put(PREFIX + "maxExecutors", String.valueOf(maxExecutors));
+        sparkConf.put(PREFIX + "initialExecutors", String.valueOf(effectiveInitialExecutors()));
+        sparkConf.put(PREFIX + "shuffleTracking.enabled", String.valueOf(shuffleTracking));
+        putIfNotNull(sparkConf, PREFIX + "shuffleTracking.timeout", shuffleTrackingTimeout);
+        putIfNotNull(sparkConf, PREFIX + "executorIdleTimeout", executorIdleTimeout);
+        putIfNotNull(sparkConf, PREFIX + "cachedExecutorIdleTimeout", cachedExecutorIdleTimeout);
+        putIfNotNull(sparkConf, PREFIX + "schedulerBacklogTimeout", schedulerBacklogTimeout);
+        return sparkConf;
+      }
+
+      private static void putIfNotNull(Map<String, String> sparkConf, String key, String value) {
+        if (value != null) {
+          sparkConf.put(key, value);
+        }
+      }
+
+      /** Reads the settings from a sparkConf, returns null if dynamic allocation is not enabled. */
+      public static DynamicAllocation fromSparkConf(Map<String, String> sparkConf) {
+        if (sparkConf == null || !Boolean.parseBoolean(sparkConf.get(PREFIX + "enabled"))) {
+          return null;
+        }
+        return DynamicAllocation.builder()
+            .minExecutors(Integer.parseInt(sparkConf.getOrDefault(PREFIX + "minExecutors", "0")))
+            .maxExecutors(
+                Integer.parseInt(
+                    sparkConf.getOrDefault(PREFIX + "maxExecutors", "" + Integer.MAX_VALUE)))
+            .initialExecutors(
+                Optional.ofNullable(sparkConf.get(PREFIX + "initialExecutors"))
+                    .map(Integer::valueOf)
+                    .orElse(null))
+            // not set means the default of this class, not the one of Spark
+            .shuffleTracking(
+                Optional.ofNullable(sparkConf.get(PREFIX + "shuffleTracking.enabled"))
+                    .map(Boolean::parseBoolean)
+                    .orElse(true))
+            .shuffleTrackingTimeout(sparkConf.get(PREFIX + "shuffleTracking.timeout"))
+            .executorIdleTimeout(sparkConf.get(PREFIX + "executorIdleTimeout"))
+            .cachedExecutorIdleTimeout(sparkConf.get(PREFIX + "cachedExecutorIdleTimeout"))
+            .schedulerBacklogTimeout(sparkConf.get(PREFIX + "schedulerBacklogTimeout"))
+            .build();
+      }
+
+      /**
+       * Returns a copy of the SparkCrd with dynamic allocation enabled: the sparkConf settings are
+       * added, the executor instances set to the initial executors and the YuniKorn executor task
+       * group, if any, sized to minExecutors (at least 1) so only the minimum is gang-scheduled.
+       *
+       * @throws IllegalArgumentException if the configuration is not valid
+       */
+      public SparkCrd applyTo(SparkCrd sparkCrd) {
+        List<String> errors = validate();
+        if (!errors.isEmpty()) {
+          throw new IllegalArgumentException(
+              "Invalid dynamic allocation: " + String.join(", ", errors));
+        }
+        Spec spec = sparkCrd.getSpec();
+        Map<String, String> sparkConf = new LinkedHashMap<>();
+        if (spec.getSparkConf() != null) {
+          sparkConf.putAll(spec.getSparkConf());
+        }
+        sparkConf.putAll(toSparkConf());
+
+        Executor executor = spec.getExecutor() != null ? spec.getExecutor() : new Executor();
+        Executor.ExecutorBuilder executorBuilder =
+            executor.toBuilder().instances(effectiveInitialExecutors());
+        PodOverrides.Metadata.Annotations annotations =
+            Optional.ofNullable(executor.getPodOverrides())
+                .map(PodOverrides::getMetadata)
+                .map(PodOverrides.Metadata::getAnnotations)
+                .orElse(null);
+        if (annotations != null && annotations.getTaskGroups() != null) {
+          String minMember = String.valueOf(Math.max(1, minExecutors));
+          List<PodOverrides.Metadata.Annotations.TaskGroup> taskGroups =
+              annotations.getTaskGroups().stream()
+                  .map(
+                      taskGroup ->
+                          taskGroup.getName() != null
+                                  && taskGroup.getName().equals(annotations.getTaskGroupName())
+                              ? taskGroup.toBuilder().minMember(minMember).build()
+                              : taskGroup)
+                  .collect(Collectors.toList());
+          PodOverrides podOverrides = executor.getPodOverrides();
+          executorBuilder.podOverrides(
+              podOverrides.toBuilder()
+                  .metadata(
+                      podOverrides.getMetadata().toBuilder()
+                          .annotations(annotations.toBuilder().taskGroups(taskGroups).build())
+                          .build())
+                  .build());
+        }
+        return sparkCrd.toBuilder()
+            .spec(spec.toBuilder().sparkConf(sparkConf).executor(executorBuilder.build()).build())
+            .build();
+      }
+    }
+
     @Data
     @Builder(toBuilder = true)
     @Jacksonized
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.kubernetes.client.custom.Quantity;
+import io.kubernetes.client.openapi.ApiClient;
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.apis.ApiextensionsV1Api;
+import io.kubernetes.client.openapi.models.V1CustomResourceDefinition;
+import io.kubernetes.client.openapi.models.V1CustomResourceDefinitionVersion;
+import io.kubernetes.client.openapi.models.V1JSONSchemaProps;
+import lombok.NonNull;
+
+import static org.gbif.stackable.SparkAppUtils.STACKABLE_SPARK_GROUP;
+import static org.gbif.stackable.SparkAppUtils.STACKABLE_SPARK_PLURAL;
+import static org.gbif.stackable.SparkAppUtils.STACKABLE_SPARK_VERSION;
+
+/**
+ * Validates a {@link SparkCrd} locally before it is submitted.
+ *
+ * <p>Checks the application name, the cpu and memory quantities, that volume mounts refer to
+ * declared volumes, the main application file and the dynamic allocation settings. All the errors
+ * are reported at once. Optionally the SparkCrd is also checked against the OpenAPI schema of the
+ * SparkApplication CRD installed in the cluster, see {@link #fromCluster(ApiClient)}.
+ */
+public class SparkCrdValidator {
+
+  /** Application names are RFC 1123 labels, limited to 63 characters. */
+  private static final int MAX_NAME_LENGTH = 63;
+
+  private static final ObjectMapper MAPPER =
+      new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+  /** Validator without schema checks. */
+  public static final SparkCrdValidator DEFAULT = new SparkCrdValidator(null);
+
+  private final V1JSONSchemaProps schema;
+
+  /** @param schema optional openAPIV3Schema of the SparkApplication CRD */
+  public SparkCrdValidator(V1JSONSchemaProps schema) {
+    this.schema = schema;
+  }
+
+  /** Validator that also checks the schema of the SparkApplication CRD read from the cluster. */
+  public static SparkCrdValidator fromCluster(ApiClient apiClient) throws ApiException {
+    V1CustomResourceDefinition crd =
+        new ApiextensionsV1Api(apiClient)
+            .readCustomResourceDefinition(
+                STACKABLE_SPARK_PLURAL + "." + STACKABLE_SPARK_GROUP, null);
+    for (V1CustomResourceDefinitionVersion version : crd.getSpec().getVersions()) {
+      if (STACKABLE_SPARK_VERSION.equals(version.getName()) && version.getSchema() != null) {
+        return new SparkCrdValidator(version.getSchema().getOpenAPIV3Schema());
+      }
+    }
+    throw new IllegalStateException("No schema found for version " + STACKABLE_SPARK_VERSION);
+  }
+
+  /** Throws an IllegalArgumentException listing all the errors if the SparkCrd is not valid. */
+  public void check(@NonNull SparkCrd sparkCrd) {
+    List<String> errors = validate(sparkCrd);
+    if (!errors.isEmpty()) {
+      String name = sparkCrd.getMetadata() != null ? sparkCrd.getMetadata().getName() : null;
+      throw new IllegalArgumentException(
+          "Invalid SparkCrd " + name + ": " + String.join(", ", errors));
+    }
+  }
+
+  /** Returns the list of errors, empty if valid. */
+  public List<String> validate(@NonNull SparkCrd sparkCrd) {
+    List<String> errors = new ArrayList<>();
+    SparkCrd.Metadata metadata = sparkCrd.getMetadata();
+    validateName(metadata != null ? metadata.getName() : null, errors);
+
+    SparkCrd.Spec spec = sparkCrd.getSpec();
+    if (spec == null) {
+      errors.add("spec is required");
+      return errors;
+    }
+    if (isBlank(spec.getMainApplicationFile())) {
+      errors.add("spec.mainApplicationFile is required");
+    }
+
+    Set<String> volumes = new HashSet<>();
+    if (spec.getVolumes() != null) {
+      for (SparkCrd.Volume volume : spec.getVolumes()) {
+        if (isBlank(volume.getName())) {
+          errors.add("spec.volumes: volume without name");
+        } else if (!volumes.add(volume.getName())) {
+          errors.add("spec.volumes: duplicated volume " + volume.getName());
+        }
+      }
+    }
+    if (spec.getJob() != null) {
+      validateResources("spec.job.resources", spec.getJob().getResources(), errors);
+    }
+    if (spec.getDriver() != null) {
+      validateResources("spec.driver.resources", spec.getDriver().getResources(), errors);
+      validateVolumeMounts("spec.driver", spec.getDriver().getVolumeMounts(), volumes, errors);
+    }
+    if (spec.getExecutor() != null) {
+      if (spec.getExecutor().getInstances() < 0) {
+        errors.add("spec.executor.instances must be >= 0");
+      }
+      validateResources("spec.executor.resources", spec.getExecutor().getResources(), errors);
+      validateVolumeMounts("spec.executor", spec.getExecutor().getVolumeMounts(), volumes, errors);
+    }
+    validateDynamicAllocation(spec.getSparkConf(), errors);
+
+    if (schema != null) {
+      validateSchema("", MAPPER.valueToTree(sparkCrd), schema, errors);
+    }
+    return errors;
+  }
+
+  /** RFC 1123 label: lower case alphanumerics and '-', starting and ending with alphanumerics. */
+  private static void validateName(String name, List<String> errors) {
+    if (isBlank(name)) {
+      errors.add("metadata.name is required");
+      return;
+    }
+    boolean valid = name.length() <= MAX_NAME_LENGTH;
+    for (int i = 0; valid && i < name.length(); i++) {
+      char c = name.charAt(i);
+      boolean alphanumeric = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+      valid = alphanumeric || (c == '-' && i > 0 && i < name.length() - 1);
+    }
+    if (!valid) {
+      errors.add("metadata.name is not a valid RFC 1123 label: " + name);
+    }
+  }
+
+  private static void validateResources(
+      String path, SparkCrd.Resources resources, List<String> errors) {
+    if (resources == null) {
+      return;
+    }
+    if (resources.getCpu() != null) {
+      BigDecimal min = quantity(path + ".cpu.min", resources.getCpu().getMin(), errors);
+      BigDecimal max = quantity(path + ".cpu.max", resources.getCpu().getMax(), errors);
+      if (min != null && max != null && min.compareTo(max) > 0) {
+        errors.add(path + ".cpu.min must be <= cpu.max");
+      }
+    }
+    if (resources.getMemory() != null) {
+      quantity(path + ".memory.limit", resources.getMemory().getLimit(), errors);
+    }
+  }
+
+  private static BigDecimal quantity(String path, String value, List<String> errors) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      BigDecimal number = Quantity.fromString(value).getNumber();
+      if (number.signum() < 0) {
+        errors.add(path + " must not be negative: " + value);
+      }
+      return number;
+    } catch (RuntimeException ex) {
+      errors.add(path + " is not a valid quantity: " + value);
+      return null;
+    }
+  }
+
+  private static void validateVolumeMounts(
+      String path,
+      List<SparkCrd.VolumeMount> volumeMounts,
+      Set<String> volumes,
+      List<String> errors) {
+    if (volumeMounts == null) {
+      return;
+    }
+    for (SparkCrd.VolumeMount volumeMount : volumeMounts) {
+      if (!volumes.contains(volumeMount.getName())) {
+        errors.add(path + ".volumeMounts: undeclared volume " + volumeMount.getName());
+      }
+      if (isBlank(volumeMount.getMountPath())) {
+        errors.add(path + ".volumeMounts: mountPath is required for " + volumeMount.getName());
+      }
+    }
+  }
+
+  private static void validateDynamicAllocation(
+      Map<String, String> sparkConf, List<String> errors) {
+    try {
+      SparkCrd.DynamicAllocation dynamicAllocation =
+          SparkCrd.DynamicAllocation.fromSparkConf(sparkConf);
+      if (dynamicAllocation != null) {
+        for (String error : dynamicAllocation.validate()) {
+          errors.add("spec.sparkConf dynamic allocation: " + error);
+        }
+      }
+    } catch (NumberFormatException ex) {
+      errors.add("spec.sparkConf dynamic allocation: " + ex.getMessage());
+    }
+  }
+
+  /** Checks types, required fields and unknown fields against a structural schema. */
+  private static void validateSchema(
+      String path, JsonNode node, V1JSONSchemaProps nodeSchema, List<String> errors) {
+    String type = nodeSchema.getType();
+    if (type != null && !matchesType(node, type)) {
+      errors.add(path + " must be of type " + type);
+      return;
+    }
+    if (node.isObject()) {
+      Map<String, V1JSONSchemaProps> properties =
+          nodeSchema.getProperties() != null ? nodeSchema.getProperties() : Collections.emptyMap();
+      List<String> required =
+          nodeSchema.getRequired() != null ? nodeSchema.getRequired() : Collections.emptyList();
+      for (String field : required) {
+        if (!node.has(field)) {
+          errors.add(path + "." + field + " is required by the CRD schema");
+        }
+      }
+      boolean openObject =
+          properties.isEmpty()
+              || Boolean.TRUE.equals(nodeSchema.getxKubernetesPreserveUnknownFields())
+              || nodeSchema.getAdditionalProperties() != null;
+      for (Iterator<Map.Entry<String, JsonNode>> fields = node.fields(); fields.hasNext(); ) {
+        Map.Entry<String, JsonNode> field = fields.next();
+        V1JSONSchemaProps fieldSchema = properties.get(field.getKey());
+        String fieldPath = path.isEmpty() ? field.getKey() : path + "." + field.getKey();
+        if (fieldSchema != null) {
+          validateSchema(fieldPath, field.getValue(), fieldSchema, errors);
+        } else if (!openObject && !path.isEmpty()) {
+          // root fields like apiVersion and kind are not always declared
+          errors.add(fieldPath + " is not declared in the CRD schema");
+        }
+      }
+    } else if (node.isArray() && nodeSchema.getItems() instanceof V1JSONSchemaProps) {
+      V1JSONSchemaProps itemSchema = (V1JSONSchemaProps) nodeSchema.getItems();
+      for (int i = 0; i < node.size(); i++) {
+        validateSchema(path + "[" + i + "]", node.get(i), itemSchema, errors);
+      }
+    }
+  }
+
+  private static boolean matchesType(JsonNode node, String type) {
+    switch (type) {
+      case "object":
+        return node.isObject();
+      case "array":
+        return node.isArray();
+      case "string":
+        return node.isTextual();
+      case "integer":
+        return node.isIntegralNumber();
+      case "number":
+        return node.isNumber();
+      case "boolean":
+        return node.isBoolean();
+      default:
+        return true;
+    }
+  }
+
+  private static boolean isBlank(String value) {
+    return value == null || value.trim().isEmpty();
+  }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Singular;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import static org.gbif.stackable.SparkAppUtils.getUid;
+
+/**
+ * Runs a DAG of Spark applications. Steps are submitted when all their dependencies have
+ * succeeded, independent steps run in parallel up to a concurrency limit.
+ *
+ * <p>The pipeline is an events listener: it advances when a {@link StackableSparkWatcher} reports
+ * a step as SUCCEEDED and retries, up to the step limit and with an exponential backoff, when it
+ * reports FAILED. Once a step fails definitively the steps not started are cancelled and the
+ * running ones are left to finish. Submissions run in a pipeline thread, so the watcher is never
+ * blocked by the API calls, and the phases of the running steps are periodically reconciled with
+ * the cluster in case a terminal event is missed. Usage:
+ *
+ * <pre>{@code
+ * SparkPipeline pipeline = SparkPipeline.builder().controller(controller).step(...).build();
+ * new StackableSparkWatcher(kubeConfig, pipeline, null).start();
+ * Map<String, SparkPipeline.Status> result = pipeline.start().get();
+ * }</pre>
+ */
+@Slf4j
+public class SparkPipeline implements StackableSparkWatcher.EventsListener {
+
+  private static final Duration DEFAULT_RETRY_BACKOFF = Duration.ofSeconds(5);
+
+  private static final Duration MAX_RETRY_BACKOFF = Duration.ofMinutes(5);
+
+  private static final Duration DEFAULT_RECONCILE_INTERVAL = Duration.ofMinutes(1);
+
+  /** Status of a step. */
+  public enum Status {
+    PENDING,
+    RUNNING,
+    SUCCEEDED,
+    FAILED,
+    CANCELLED;
+
+    boolean isFinished() {
+      return this == SUCCEEDED || this == FAILED || this == CANCELLED;
+    }
+  }
+
+  /** A step of the pipeline, the step name is used as application id. */
+  @Value
+  @Builder
+  public static class Step {
+    @NonNull String name;
+    @NonNull SparkCrd sparkCrd;
+
+    /** Names of the steps that must succeed before this one starts. */
+    @Singular("dependsOn")
+    Set<String> dependencies;
+
+    /** Number of times the step is resubmitted after failing. */
+    int maxRetries;
+  }
+
+  private static class StepState {
+    private final Step step;
+    private Status status = Status.PENDING;
+    private int attempts = 0;
+
+    /** A submission is in progress, events are ignored until it finishes. */
+    private boolean submitting = false;
+
+    /** uid of the application of the current attempt, events of other attempts are ignored. */
+    private String uid;
+
+    private StepState(Step step) {
+      this.step = step;
+    }
+  }
+
+  private final K8StackableSparkController controller;
+
+  private final int maxConcurrency;
+
+  private final Duration retryBackoff;
+
+  private final Duration reconcileInterval;
+
+  private final Duration timeout;
+
+  /** Steps by application id. */
+  private final Map<String, StepState> steps = new LinkedHashMap<>();
+
+  private final CompletableFuture<Map<String, Status>> result = new CompletableFuture<>();
+
+  /** Schedules retries, reconciliations and the timeout. */
+  private final ScheduledExecutorService scheduler;
+
+  /** Runs the submissions and reconciliations, which block on API calls. */
+  private final ExecutorService executor;
+
+  private boolean failed = false;
+
+  private boolean started = false;
+
+  /**
+   * Creates a pipeline.
+   *
+   * @param controller used to submit the steps
+   * @param steps steps of the pipeline, dependencies must form a DAG
+   * @param maxConcurrency maximum steps running at the same time, unlimited if 0
+   * @param retryBackoff delay before the first retry of a step, doubled on each attempt, 5s if null
+   * @param reconcileInterval interval to check the phases of the running steps in the cluster, 1
+   *     minute if null, disabled if zero
+   * @param timeout the result completes with a TimeoutException if the pipeline hasn't finished
+   *     in this time, no timeout if null
+   */
+  @Builder
+  public SparkPipeline(
+      @NonNull K8StackableSparkController controller,
+      @Singular List<Step> steps,
+      int maxConcurrency,
+      Duration retryBackoff,
+      Duration reconcileInterval,
+      Duration timeout) {
+    this.controller = controller;
+    this.maxConcurrency = maxConcurrency > 0 ? maxConcurrency : Integer.MAX_VALUE;
+    this.retryBackoff = retryBackoff != null ? retryBackoff : DEFAULT_RETRY_BACKOFF;
+    this.reconcileInterval =
+        reconcileInterval != null ? reconcileInterval : DEFAULT_RECONCILE_INTERVAL;
+    this.timeout = timeout;
+    for (Step step : steps) {
+      if (this.steps.put(step.getName(), new StepState(step)) != null) {
+        throw new IllegalArgumentException("Duplicated step " + step.getName());
+      }
+    }
+    validateDag();
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(VirtualThreads.threadFactory("spark-pipeline-"));
+    executor = VirtualThreads.newThreadPerTaskExecutor("spark-pipeline-submit-");
+    result.whenComplete(
+        (status, error) -> {
+          scheduler.shutdownNow();
+          executor.shutdown();
+        });
+  }
+
+  /** Checks that dependencies exist and have no cycles. */
+  private void validateDag() {
+    Set<String> visited = new HashSet<>();
+    for (String name : steps.keySet()) {
+      checkCycles(name, visited, new HashSet<>());
+    }
+  }
+
+  private void checkCycles(String name, Set<String> visited, Set<String> path) {
+    if (!steps.containsKey(name)) {
+      throw new IllegalArgumentException("Unknown step " + name);
+    }
+    if (!path.add(name)) {
+      throw new IllegalArgumentException("Cycle in pipeline at step " + name);
+    }
+    if (visited.add(name)) {
+      for (String dependency : steps.get(name).step.getDependencies()) {
+        checkCycles(dependency, visited, path);
+      }
+    }
+    path.remove(name);
+  }
+
+  /**
+   * Submits the steps without dependencies.
+   *
+   * @return a future completed with the status of each step when all of them are finished
+   */
+  public synchronized CompletableFuture<Map<String, Status>> start() {
+    if (!started) {
+      started = true;
+      if (!reconcileInterval.isZero()) {
+        long interval = reconcileInterval.toMillis();
+        scheduler.scheduleWithFixedDelay(
+            () -> execute(this::reconcile), interval, interval, TimeUnit.MILLISECONDS);
+      }
+      if (timeout != null) {
+        scheduler.schedule(this::expire, timeout.toMillis(), TimeUnit.MILLISECONDS);
+      }
+      submitReady();
+    }
+    return result;
+  }
+
+  /** Current status of each step. */
+  public synchronized Map<String, Status> getStatus() {
+    Map<String, Status> status = new LinkedHashMap<>();
+    steps.forEach((name, state) -> status.put(name, state.status));
+    return Collections.unmodifiableMap(status);
+  }
+
+  @Override
+  public synchronized void onEvent(
+      StackableSparkWatcher.EventType eventType,
+      String appName,
+      K8StackableSparkController.Phase phase,
+      Object payload) {
+    StepState state = steps.get(appName);
+    if (state == null
+        || state.status != Status.RUNNING
+        || state.submitting
+        || !(payload instanceof AbstractMap)) {
+      return;
+    }
+    if (state.uid != null && !state.uid.equals(getUid((AbstractMap<String, Object>) payload))) {
+      // Event of a previous attempt or of an application replaced by the step
+      return;
+    }
+    onPhase(state, phase, eventType == StackableSparkWatcher.EventType.DELETED);
+  }
+
+  /** Advances the pipeline if the step reached a terminal phase. */
+  private void onPhase(StepState state, K8StackableSparkController.Phase phase, boolean deleted) {
+    if (phase == K8StackableSparkController.Phase.SUCCEEDED) {
+      log.info("Pipeline step {} succeeded", state.step.getName());
+      state.status = Status.SUCCEEDED;
+    } else if (phase == K8StackableSparkController.Phase.FAILED || deleted) {
+      log.warn("Pipeline step {} failed in attempt {}", state.step.getName(), state.attempts);
+      retryOrFail(state);
+    } else {
+      return;
+    }
+    submitReady();
+  }
+
+  /** Submits the pending steps whose dependencies have succeeded, within the concurrency limit. */
+  private void submitReady() {
+    if (!failed) {
+      long running = steps.values().stream().filter(s -> s.status == Status.RUNNING).count();
+      for (StepState state : steps.values()) {
+        if (running >= maxConcurrency) {
+          break;
+        }
+        if (state.status == Status.PENDING && dependenciesSucceeded(state)) {
+          submit(state, 0L);
+          running++;
+        }
+      }
+    }
+    completeIfFinished();
+  }
+
+  private boolean dependenciesSucceeded(StepState state) {
+    return state.step.getDependencies().stream()
+        .allMatch(dependency -> steps.get(dependency).status == Status.SUCCEEDED);
+  }
+
+  private void retryOrFail(StepState state) {
+    if (state.attempts <= state.step.getMaxRetries() && !failed) {
+      submit(state, backoffMillis(state.attempts));
+    } else {
+      fail(state);
+    }
+  }
+
+  /** Exponential backoff after the given number of attempts. */
+  private long backoffMillis(int attempts) {
+    long backoff = retryBackoff.toMillis() << Math.min(attempts - 1, 20);
+    return Math.min(backoff, MAX_RETRY_BACKOFF.toMillis());
+  }
+
+  /** Marks the step as running and submits it in the executor after a delay. */
+  private void submit(StepState state, long delayMillis) {
+    state.attempts++;
+    state.status = Status.RUNNING;
+    state.submitting = true;
+    state.uid = null;
+    try {
+      if (delayMillis > 0) {
+        log.info("Retrying pipeline step {} in {} ms", state.step.getName(), delayMillis);
+        scheduler.schedule(
+            () -> execute(() -> doSubmit(state)), delayMillis, TimeUnit.MILLISECONDS);
+      } else {
+        executor.execute(() -> doSubmit(state));
+      }
+    } catch (RejectedExecutionException ex) {
+      // the pipeline finished, by a timeout
+      state.submitting = false;
+    }
+  }
+
+  private void execute(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException ex) {
+      log.debug("Pipeline finished, task discarded");
+    }
+  }
+
+  /** Submits the step outside the lock, the watcher thread isn't blocked by the API calls. */
+  private void doSubmit(StepState state) {
+    String uid;
+    try {
+      AbstractMap<String, Object> application =
+          controller.submitSparkApplication(state.step.getSparkCrd(), state.step.getName());
+      uid = application != null ? getUid(application) : null;
+    } catch (Exception ex) {
+      log.error("Error submitting pipeline step {}", state.step.getName(), ex);
+      synchronized (this) {
+        state.submitting = false;
+        if (state.status == Status.RUNNING) {
+          retryOrFail(state);
+          submitReady();
+        }
+      }
+      return;
+    }
+    synchronized (this) {
+      state.submitting = false;
+      state.uid = uid;
+      log.info("Pipeline step {} submitted, attempt {}", state.step.getName(), state.attempts);
+    }
+  }
+
+  /** Checks the phases of the running steps in the cluster, in case an event was missed. */
+  private void reconcile() {
+    Map<String, Integer> running = new HashMap<>();
+    synchronized (this) {
+      steps.values().stream()
+          .filter(s -> s.status == Status.RUNNING && !s.submitting)
+          .forEach(s -> running.put(s.step.getName(), s.attempts));
+    }
+    if (running.isEmpty()) {
+      return;
+    }
+    Map<String, K8StackableSparkController.Phase> phases;
+    try {
+      phases = controller.getPhases(running.keySet());
+    } catch (Exception ex) {
+      log.warn("Error reconciling the pipeline steps", ex);
+      return;
+    }
+    synchronized (this) {
+      running.forEach(
+          (name, attempts) -> {
+            StepState state = steps.get(name);
+            // skip steps resubmitted or finished since the phases were read
+            if (state.status == Status.RUNNING
+                && !state.submitting
+                && state.attempts == attempts) {
+              K8StackableSparkController.Phase phase = phases.get(name);
+              onPhase(state, phase, phase == null);
+            }
+          });
+    }
+  }
+
+  /** Completes the result with a TimeoutException, running applications are left running. */
+  private synchronized void expire() {
+    if (!result.isDone()) {
+      failed = true;
+      steps.values().stream()
+          .filter(s -> s.status == Status.PENDING)
+          .forEach(s -> s.status = Status.CANCELLED);
+      result.completeExceptionally(
+          new TimeoutException("Pipeline not finished in " + timeout + ": " + getStatus()));
+    }
+  }
+
+  /** Marks the step as failed and cancels the steps not started. */
+  private void fail(StepState state) {
+    state.status = Status.FAILED;
+    failed = true;
+    steps.values().stream()
+        .filter(s -> s.status == Status.PENDING)
+        .forEach(s -> s.status = Status.CANCELLED);
+  }
+
+  private void completeIfFinished() {
+    if (!result.isDone() && steps.values().stream().allMatch(s -> s.status.isFinished())) {
+      Map<String, Status> status = new HashMap<>();
+      steps.forEach((name, state) -> status.put(name, state.status));
+      result.complete(Collections.unmodifiableMap(status));
+    }
+  }
+}
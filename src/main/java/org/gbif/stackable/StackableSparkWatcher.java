@@ -16,23 +16,30 @@
 package org.gbif.stackable;
 
 import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.gson.reflect.TypeToken;
 
 import io.kubernetes.client.openapi.ApiClient;
-import io.kubernetes.client.openapi.Configuration;
+import io.kubernetes.client.openapi.ApiException;
 import io.kubernetes.client.openapi.apis.CustomObjectsApi;
 import io.kubernetes.client.util.ClientBuilder;
 import io.kubernetes.client.util.KubeConfig;
 import io.kubernetes.client.util.Watch;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
 
 import static org.gbif.stackable.SparkAppUtils.*;
 
@@ -42,6 +49,22 @@ public class StackableSparkWatcher implements Runnable, Closeable {
 
   private static final ObjectMapper MAPPER = new ObjectMapper();
 
+  private static final String ERROR_EVENT = "ERROR";
+
+  private static final Duration DEFAULT_WATCH_TIMEOUT = Duration.ofMinutes(5);
+
+  private static final Duration DEFAULT_MAX_SILENCE = Duration.ofMinutes(3);
+
+  private static final long MIN_RECONNECT_DELAY_MILLIS = 1_000L;
+
+  private static final long MAX_RECONNECT_DELAY_MILLIS = 60_000L;
+
+  /** Errors that a reconnection won't fix: bad request, credentials, permissions or resource. */
+  private static final Set<Integer> NON_RETRYABLE_CODES =
+      new HashSet<>(Arrays.asList(400, 401, 403, 404, 422));
+
+  private static final int GONE = 410;
+
   /** Event listener interface called on every update it gets from K8. */
   public interface EventsListener {
     void onEvent(
@@ -49,6 +72,35 @@ public class StackableSparkWatcher implements Runnable, Closeable {
         String appName,
         K8StackableSparkController.Phase phase,
         Object payload);
+
+    /**
+     * Called when a watch starts without a resourceVersion. ADDED events for all the existing
+     * applications follow, applications deleted while the watcher was disconnected are not
+     * reported.
+     */
+    default void onRelist() {}
+
+    /** Returns a listener that calls this listener and then the next one. */
+    default EventsListener andThen(EventsListener next) {
+      EventsListener first = this;
+      return new EventsListener() {
+        @Override
+        public void onEvent(
+            EventType eventType,
+            String appName,
+            K8StackableSparkController.Phase phase,
+            Object payload) {
+          first.onEvent(eventType, appName, phase, payload);
+          next.onEvent(eventType, appName, phase, payload);
+        }
+
+        @Override
+        public void onRelist() {
+          first.onRelist();
+          next.onRelist();
+        }
+      };
+    }
   }
 
   /** Default listener: logs each captured event. */
@@ -79,7 +131,37 @@ public class StackableSparkWatcher implements Runnable, Closeable {
 
   private final Pattern nameSelector;
 
-  private boolean stop = false;
+  private volatile boolean stop = false;
+
+  /** Last resourceVersion seen, used to resume the watch without re-listing. */
+  private volatile String resourceVersion;
+
+  /** Server-side duration of each watch request. */
+  private volatile Duration watchTimeout = DEFAULT_WATCH_TIMEOUT;
+
+  /** Maximum time without events or bookmarks before the watch is considered stalled. */
+  private volatile Duration maxSilence = DEFAULT_MAX_SILENCE;
+
+  /** System.nanoTime of the last event, bookmark or connection. */
+  private volatile long lastEventNanos = System.nanoTime();
+
+  /**
+   * System.nanoTime from which the silence of the watch is measured: the last event received or
+   * the last listener call returning, time spent in the listener is not silence of the server.
+   */
+  private volatile long silenceStartNanos = System.nanoTime();
+
+  /**
+   * Milliseconds between the server-side time of the last change of the object in the last event
+   * and the time the event was received, -1 if no event with a timestamp has been received.
+   */
+  private volatile long eventLagMillis = -1L;
+
+  /** The listener is being called, e.g. blocked by the backpressure of an EventSubscription. */
+  private volatile boolean inListener = false;
+
+  /** Call of the current watch, cancelled to abort a stalled watch or to stop. */
+  private volatile Call currentCall;
 
   @SneakyThrows
   public static StackableSparkWatcher fromConfigFile(String kubeConfigFile) {
@@ -110,6 +192,54 @@ public class StackableSparkWatcher implements Runnable, Closeable {
     this.nameSelector = null;
   }
 
+  /**
+   * Sets the resourceVersion from which the watch starts, e.g. the last one recorded by an {@link
+   * EventJournal}. If the version is too old the watch falls back to a full re-list.
+   */
+  public StackableSparkWatcher resumeFrom(String resourceVersion) {
+    this.resourceVersion = resourceVersion;
+    return this;
+  }
+
+  /** Last resourceVersion received from K8. */
+  public String getLastResourceVersion() {
+    return resourceVersion;
+  }
+
+  /** Sets the server-side timeout of each watch request, 5 minutes by default. */
+  public StackableSparkWatcher watchTimeout(Duration watchTimeout) {
+    this.watchTimeout = watchTimeout;
+    return this;
+  }
+
+  /**
+   * Sets the maximum time without receiving events or bookmarks, 3 minutes by default. When it
+   * elapses the connection is assumed half-open and the watch is restarted.
+   */
+  public StackableSparkWatcher maxSilence(Duration maxSilence) {
+    this.maxSilence = maxSilence;
+    return this;
+  }
+
+  /**
+   * Time since the last event or bookmark was received. It isn't the lag of the events, it tells
+   * how long the watch has been quiet, i.e. how stale the watcher view can be.
+   */
+  public long getMillisSinceLastEvent() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastEventNanos);
+  }
+
+  /**
+   * Lag of the last event: the time it was received minus the server-side time of the change it
+   * reports, taken from the managedFields, deletion or creation timestamps of the object. Those
+   * timestamps have a precision of seconds and depend on the clocks of the client and the server.
+   *
+   * @return the lag in milliseconds, -1 if no event with a timestamp has been received yet
+   */
+  public long getEventLagMillis() {
+    return eventLagMillis;
+  }
+
   /** Creates a started Thread with the current instance as Runnable. */
   public Thread start() {
     Thread watcherThread = new Thread(this);
@@ -117,6 +247,16 @@ public class StackableSparkWatcher implements Runnable, Closeable {
     return watcherThread;
   }
 
+  /**
+   * Creates a started Thread using a thread factory, e.g. {@link
+   * VirtualThreads#threadFactory(String)} to run the watcher in a virtual thread.
+   */
+  public Thread start(ThreadFactory threadFactory) {
+    Thread watcherThread = threadFactory.newThread(this);
+    watcherThread.start();
+    return watcherThread;
+  }
+
   /** Recognised event types from K8. */
   public enum EventType {
     BOOKMARK,
@@ -125,76 +265,195 @@ public class StackableSparkWatcher implements Runnable, Closeable {
     DELETED;
   }
 
-  /** Starts the watcher execution. */
+  /**
+   * Starts the watcher execution. Interrupted watches are restarted with an exponential backoff,
+   * the watcher fails if the API server responds with a non-retryable error such as 401 or 403.
+   */
   @Override
   @SneakyThrows
   public void run() {
     log.info("Starting K8StackableSpark Watcher");
-    Configuration.setDefaultApiClient(ClientBuilder.kubeconfig(kubeConfig).build());
-    ApiClient client = Configuration.getDefaultApiClient();
-    CustomObjectsApi customObjectsApi = new CustomObjectsApi();
+    ApiClient client = watchApiClient();
+    CustomObjectsApi customObjectsApi = new CustomObjectsApi(client);
+    Thread livenessMonitor = startLivenessMonitor();
+    long reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
     // Creates a watch for the Stackable Spark application
     // Recreate watcher when it ends cycle
-    while (!stop) {
-      log.debug("Starting new K8StackableSpark watch cycle");
-      try (Watch<Object> watch =
-          Watch.createWatch(
-              client,
-              customObjectsApi.listNamespacedCustomObjectCall(
-                  STACKABLE_SPARK_GROUP,
-                  STACKABLE_SPARK_VERSION,
-                  kubeConfig.getNamespace(),
-                  STACKABLE_SPARK_PLURAL,
-                  null,
-                  null,
-                  null,
-                  toSelectorQuery(fieldSelector),
-                  toSelectorQuery(labelSelector),
-                  null,
-                  null,
-                  null,
-                  null,
-                  Boolean.TRUE,
-                  null),
-              new TypeToken<Watch.Response<Object>>() {}.getType())) {
-        // Gets the watch response and calls the listener
-        for (Watch.Response<Object> item : watch) {
-          AbstractMap<String, Object> object = (AbstractMap<String, Object>) item.object;
-          EventType eventType = EventType.valueOf(item.type);
-          K8StackableSparkController.Phase phase = getPhase(object);
-          String appName = getAppName(object);
-          if (matchesNameSelector(appName)) {
-            eventsListener.onEvent(eventType, appName, phase, object);
+    try {
+      while (!stop) {
+        log.debug("Starting new K8StackableSpark watch cycle");
+        boolean relist = resourceVersion == null;
+        Call call =
+            customObjectsApi.listNamespacedCustomObjectCall(
+                    STACKABLE_SPARK_GROUP,
+                    STACKABLE_SPARK_VERSION,
+                    kubeConfig.getNamespace(),
+                    STACKABLE_SPARK_PLURAL,
+                    null,
+                    Boolean.TRUE,
+                    null,
+                    toSelectorQuery(fieldSelector),
+                    toSelectorQuery(labelSelector),
+                    null,
+                    resourceVersion,
+                    null,
+                    (int) watchTimeout.getSeconds(),
+                    Boolean.TRUE,
+                    null);
+        currentCall = call;
+        lastEventNanos = System.nanoTime();
+        silenceStartNanos = lastEventNanos;
+        try (Watch<Object> watch =
+            Watch.createWatch(
+                client, call, new TypeToken<Watch.Response<Object>>() {}.getType())) {
+          if (relist) {
+            eventsListener.onRelist();
+          }
+          if (!stop && consume(watch)) {
+            reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+          }
+        } catch (ApiException ex) {
+          if (NON_RETRYABLE_CODES.contains(ex.getCode())) {
+            log.error(
+                "K8StackableSpark watch failed with code {}: {}",
+                ex.getCode(),
+                ex.getResponseBody());
+            stop = true;
+            throw ex;
           }
-          if (stop) {
-            break;
+          if (ex.getCode() == GONE) {
+            resourceVersion = null;
           }
+          reconnectDelay = reconnectAfterError(ex, reconnectDelay);
+        } catch (Exception ex) {
+          reconnectDelay = reconnectAfterError(ex, reconnectDelay);
+        } finally {
+          currentCall = null;
         }
+        log.debug("End of K8StackableSpark watch cycle");
       }
-      log.debug("End of K8StackableSpark watch cycle");
+    } finally {
+      livenessMonitor.interrupt();
     }
   }
 
   /**
-   * Matches a string to the name pattern.
-   * Null name selector matches all applications.
+   * Gets the watch response and calls the listener.
+   *
+   * @return true if at least one event or bookmark was received
    */
-  private boolean matchesNameSelector(String appName) {
-    return nameSelector == null || nameSelector.matcher(appName).matches();
+  private boolean consume(Watch<Object> watch) {
+    boolean received = false;
+    for (Watch.Response<Object> item : watch) {
+      received = true;
+      lastEventNanos = System.nanoTime();
+      silenceStartNanos = lastEventNanos;
+      if (ERROR_EVENT.equals(item.type)) {
+        // Usually a 410 Gone: the resourceVersion is too old, restart with a full list
+        log.warn("Error event received, restarting watch from scratch: {}", item.status);
+        resourceVersion = null;
+        return true;
+      }
+      AbstractMap<String, Object> object = (AbstractMap<String, Object>) item.object;
+      String objectResourceVersion = getResourceVersion(object);
+      if (objectResourceVersion != null) {
+        resourceVersion = objectResourceVersion;
+      }
+      EventType eventType = EventType.valueOf(item.type);
+      if (eventType != EventType.BOOKMARK) {
+        Instant updated = getLastUpdateTime(object);
+        if (updated != null) {
+          eventLagMillis = Math.max(0, Duration.between(updated, Instant.now()).toMillis());
+        }
+        K8StackableSparkController.Phase phase = getPhase(object);
+        String appName = getAppName(object);
+        if (matchesNameSelector(appName)) {
+          inListener = true;
+          try {
+            eventsListener.onEvent(eventType, appName, phase, object);
+          } finally {
+            silenceStartNanos = System.nanoTime();
+            inListener = false;
+          }
+        }
+      }
+      if (stop) {
+        return true;
+      }
+    }
+    return received;
   }
 
-  /** Takes a K8 selector Map<String,String> and returns a string in the format: key1=value1,..,keyN=valueN. */
-  private String toSelectorQuery(Map<String,String> selector) {
-    if (selector != null && !selector.isEmpty()) {
-      return selector.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining(","));
+  /** Client without read timeout, liveness is checked by {@link #startLivenessMonitor()}. */
+  @SneakyThrows
+  private ApiClient watchApiClient() {
+    ApiClient client = ClientBuilder.kubeconfig(kubeConfig).build();
+    client.setReadTimeout(0);
+    return client;
+  }
+
+  /**
+   * Cancels the current watch call if nothing has been received for longer than maxSilence, not
+   * counting the time spent in the listener.
+   */
+  private Thread startLivenessMonitor() {
+    Thread monitor =
+        VirtualThreads.threadFactory("spark-watcher-liveness-")
+            .newThread(
+                () -> {
+                  while (!stop) {
+                    try {
+                      Thread.sleep(Math.max(100L, maxSilence.toMillis() / 4));
+                    } catch (InterruptedException ex) {
+                      return;
+                    }
+                    Call call = currentCall;
+                    long silenceMillis =
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - silenceStartNanos);
+                    if (call != null && !inListener && silenceMillis > maxSilence.toMillis()) {
+                      log.warn(
+                          "No K8StackableSpark events for {} ms, restarting watch", silenceMillis);
+                      silenceStartNanos = System.nanoTime();
+                      call.cancel();
+                    }
+                  }
+                });
+    monitor.start();
+    return monitor;
+  }
+
+  /** Waits before reconnecting, returns the next delay doubled up to a maximum. */
+  private long reconnectAfterError(Exception ex, long reconnectDelay) {
+    if (stop) {
+      return reconnectDelay;
+    }
+    log.warn(
+        "K8StackableSpark watch cycle interrupted, reconnecting in {} ms", reconnectDelay, ex);
+    try {
+      Thread.sleep(reconnectDelay);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      stop = true;
     }
-    return null;
+    return Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
+  }
+
+  /**
+   * Matches a string to the name pattern.
+   * Null name selector matches all applications.
+   */
+  private boolean matchesNameSelector(String appName) {
+    return nameSelector == null || (appName != null && nameSelector.matcher(appName).matches());
   }
 
-  /** Stops the watcher. */
+  /** Stops the watcher, the current call is cancelled so the watcher thread ends promptly. */
   public void stop() {
     stop = true;
     log.info("Stopping K8StackableSpark Watcher");
+    Call call = currentCall;
+    if (call != null) {
+      call.cancel();
+    }
   }
 
   @Override
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Thread factories that use virtual threads when running on a JVM that supports them (Java 21+).
+ * The library is built for Java 8, so virtual threads are looked up by reflection and platform
+ * threads are used when they are not available.
+ */
+@Slf4j
+public class VirtualThreads {
+
+  private static final Method OF_VIRTUAL = findOfVirtual();
+
+  private VirtualThreads() {}
+
+  private static Method findOfVirtual() {
+    try {
+      return Thread.class.getMethod("ofVirtual");
+    } catch (NoSuchMethodException ex) {
+      return null;
+    }
+  }
+
+  /** Are virtual threads supported by the current JVM. */
+  public static boolean isAvailable() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Creates a thread factory of virtual threads, or of platform threads if virtual threads are
+   * not supported. Threads are named using the prefix and a sequence number.
+   */
+  public static ThreadFactory threadFactory(String namePrefix) {
+    if (isAvailable()) {
+      try {
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        Object builder = OF_VIRTUAL.invoke(null);
+        builder =
+            builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+        return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      } catch (ReflectiveOperationException ex) {
+        log.warn("Virtual threads could not be created, using platform threads", ex);
+      }
+    }
+    return platformThreadFactory(namePrefix);
+  }
+
+  /**
+   * Creates an executor that runs each task in a new virtual thread, falls back to a cached pool of
+   * platform threads if virtual threads are not supported.
+   */
+  public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+    if (isAvailable()) {
+      try {
+        return (ExecutorService)
+            Executors.class
+                .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, threadFactory(namePrefix));
+      } catch (ReflectiveOperationException ex) {
+        log.warn("Virtual thread executor could not be created, using platform threads", ex);
+      }
+    }
+    return Executors.newCachedThreadPool(platformThreadFactory(namePrefix));
+  }
+
+  private static ThreadFactory platformThreadFactory(String namePrefix) {
+    AtomicLong counter = new AtomicLong();
+    return runnable -> {
+      Thread thread = new Thread(runnable, namePrefix + counter.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
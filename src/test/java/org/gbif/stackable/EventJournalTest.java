@@ -0,0 +1,162 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import lombok.SneakyThrows;
+
+/** Tests the segments, recovery and replay of {@link EventJournal}. */
+public class EventJournalTest {
+
+  private static final int SEGMENT_SIZE = 256;
+
+  private static EventJournal journal(Path directory) {
+    return EventJournal.builder().directory(directory).segmentSize(SEGMENT_SIZE).build();
+  }
+
+  private static void append(EventJournal journal, int count) {
+    for (int i = 0; i < count; i++) {
+      journal.append(
+          StackableSparkWatcher.EventType.MODIFIED,
+          "app-" + i,
+          K8StackableSparkController.Phase.RUNNING,
+          String.valueOf(i + 1));
+    }
+  }
+
+  private static List<EventJournal.Record> replayAll(EventJournal journal) {
+    List<EventJournal.Record> records = new ArrayList<>();
+    journal.replay(0L, records::add);
+    return records;
+  }
+
+  @SneakyThrows
+  private static long segments(Path directory) {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.count();
+    }
+  }
+
+  @Test
+  public void rollOverTest(@TempDir Path directory) {
+    try (EventJournal journal = journal(directory)) {
+      append(journal, 50);
+
+      List<EventJournal.Record> records = replayAll(journal);
+      Assertions.assertEquals(50, records.size());
+      Assertions.assertEquals("app-49", records.get(49).getAppName());
+      Assertions.assertTrue(segments(directory) > 1);
+
+      // replay from a checkpoint in the middle
+      List<EventJournal.Record> tail = new ArrayList<>();
+      long next = journal.replay(records.get(40).getPosition(), tail::add);
+      Assertions.assertEquals(10, tail.size());
+      Assertions.assertEquals("app-40", tail.get(0).getAppName());
+      Assertions.assertEquals(journal.position(), next);
+    }
+  }
+
+  @Test
+  public void recoveryTest(@TempDir Path directory) {
+    long position;
+    try (EventJournal journal = journal(directory)) {
+      append(journal, 30);
+      position = journal.position();
+    }
+    try (EventJournal journal = EventJournal.builder().directory(directory).build()) {
+      Assertions.assertEquals(position, journal.position());
+      Assertions.assertEquals("30", journal.getLastResourceVersion());
+      append(journal, 1);
+      Assertions.assertEquals(31, replayAll(journal).size());
+    }
+    Assertions.assertThrows(
+        IllegalArgumentException.class,
+        () -> EventJournal.builder().directory(directory).segmentSize(SEGMENT_SIZE * 2).build());
+  }
+
+  @Test
+  @SneakyThrows
+  public void tornRecordTest(@TempDir Path directory) {
+    long position;
+    try (EventJournal journal = journal(directory)) {
+      append(journal, 2);
+      position = journal.position();
+    }
+    // a crash in the middle of an append: body written, length and checksum not
+    Path segment = directory.resolve(String.format("%010d.journal", 0));
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4}), position);
+    }
+
+    try (EventJournal journal = journal(directory)) {
+      Assertions.assertEquals(position, journal.position());
+      Assertions.assertEquals(2, replayAll(journal).size());
+      journal.append(StackableSparkWatcher.EventType.DELETED, "app-x", null, null);
+
+      List<EventJournal.Record> records = replayAll(journal);
+      Assertions.assertEquals(3, records.size());
+      Assertions.assertEquals("app-x", records.get(2).getAppName());
+      Assertions.assertEquals("2", journal.getLastResourceVersion());
+    }
+  }
+
+  @Test
+  public void replayPayloadTest(@TempDir Path directory) {
+    Map<String, Object> metadata = new HashMap<>();
+    metadata.put("name", "app-1");
+    metadata.put("uid", "uid-1");
+    metadata.put("resourceVersion", "7");
+    metadata.put("creationTimestamp", "2023-06-01T10:00:00Z");
+    Map<String, Object> status = new HashMap<>();
+    status.put("phase", "Running");
+    HashMap<String, Object> payload = new HashMap<>();
+    payload.put("metadata", metadata);
+    payload.put("status", status);
+
+    try (EventJournal journal = journal(directory)) {
+      journal.onEvent(
+          StackableSparkWatcher.EventType.ADDED,
+          "app-1",
+          K8StackableSparkController.Phase.RUNNING,
+          payload);
+
+      SparkApplicationCache applicationCache = new SparkApplicationCache();
+      journal.replay(0L, applicationCache);
+
+      SparkApplicationCache.Entry entry = applicationCache.get("app-1");
+      Assertions.assertEquals(K8StackableSparkController.Phase.RUNNING, entry.getPhase());
+      Assertions.assertEquals("uid-1", SparkAppUtils.getUid(entry.getApplication()));
+      Assertions.assertEquals("7", SparkAppUtils.getResourceVersion(entry.getApplication()));
+      Assertions.assertEquals(
+          K8StackableSparkController.Phase.RUNNING,
+          SparkAppUtils.getPhase(entry.getApplication()));
+    }
+  }
+}
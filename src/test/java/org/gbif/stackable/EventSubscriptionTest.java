@@ -0,0 +1,202 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import lombok.SneakyThrows;
+
+/** Tests the buffering and backpressure of {@link EventSubscription}. */
+public class EventSubscriptionTest {
+
+  private static void publish(EventSubscription subscription, String appName) {
+    subscription.onEvent(
+        StackableSparkWatcher.EventType.ADDED,
+        appName,
+        K8StackableSparkController.Phase.PENDING,
+        null);
+  }
+
+  @Test
+  @SneakyThrows
+  public void backpressureTest() {
+    try (EventSubscription subscription = new EventSubscription(2)) {
+      Thread producer =
+          new Thread(
+              () -> {
+                for (int i = 0; i < 3; i++) {
+                  publish(subscription, "app-" + i);
+                }
+              });
+      producer.start();
+
+      // the third event blocks the producer while the buffer is full
+      producer.join(500);
+      Assertions.assertTrue(producer.isAlive());
+      Assertions.assertEquals(2, subscription.size());
+
+      Assertions.assertEquals(1, subscription.poll(1, 1, TimeUnit.SECONDS).size());
+      producer.join(5_000);
+      Assertions.assertFalse(producer.isAlive());
+      Assertions.assertEquals(2, subscription.size());
+    }
+  }
+
+  @Test
+  public void pollTest() {
+    try (EventSubscription subscription = new EventSubscription(10)) {
+      for (int i = 0; i < 5; i++) {
+        publish(subscription, "app-" + i);
+      }
+
+      List<EventSubscription.Event> batch = subscription.poll(3, 1, TimeUnit.SECONDS);
+      Assertions.assertEquals(3, batch.size());
+      Assertions.assertEquals("app-0", batch.get(0).getAppName());
+      Assertions.assertEquals(2, subscription.poll(3, 1, TimeUnit.SECONDS).size());
+      Assertions.assertTrue(subscription.poll(3, 50, TimeUnit.MILLISECONDS).isEmpty());
+      Assertions.assertThrows(
+          IllegalArgumentException.class, () -> subscription.poll(0, 1, TimeUnit.SECONDS));
+    }
+  }
+
+  @SneakyThrows
+  private static void await(BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + 5_000L;
+    while (!condition.getAsBoolean()) {
+      Assertions.assertTrue(System.currentTimeMillis() < deadline, "Condition not met in time");
+      Thread.sleep(20);
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void publisherTest() {
+    EventSubscription subscription = new EventSubscription(10);
+    List<String> received = Collections.synchronizedList(new ArrayList<>());
+    Subscription[] demand = new Subscription[1];
+    CountDownLatch completed = new CountDownLatch(1);
+    subscription.subscribe(
+        new Subscriber<EventSubscription.Event>() {
+          @Override
+          public void onSubscribe(Subscription s) {
+            demand[0] = s;
+            s.request(2);
+          }
+
+          @Override
+          public void onNext(EventSubscription.Event event) {
+            received.add(event.getAppName());
+          }
+
+          @Override
+          public void onError(Throwable t) {}
+
+          @Override
+          public void onComplete() {
+            completed.countDown();
+          }
+        });
+    for (int i = 0; i < 5; i++) {
+      publish(subscription, "app-" + i);
+    }
+
+    // only the requested events are delivered, the rest stay buffered
+    await(() -> received.size() == 2);
+    Thread.sleep(200);
+    Assertions.assertEquals(2, received.size());
+    Assertions.assertEquals(3, subscription.size());
+
+    demand[0].request(3);
+    await(() -> received.size() == 5);
+    Assertions.assertEquals("app-4", received.get(4));
+
+    subscription.close();
+    Assertions.assertTrue(completed.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  @SneakyThrows
+  public void singleSubscriberTest() {
+    try (EventSubscription subscription = new EventSubscription(1)) {
+      subscription.subscribe(new NoopSubscriber(new CountDownLatch(1)));
+      CountDownLatch failed = new CountDownLatch(1);
+      subscription.subscribe(new NoopSubscriber(failed));
+      Assertions.assertTrue(failed.await(1, TimeUnit.SECONDS));
+    }
+  }
+
+  /** Subscriber without demand, counts down the latch on errors. */
+  private static class NoopSubscriber implements Subscriber<EventSubscription.Event> {
+    private final CountDownLatch failed;
+
+    private NoopSubscriber(CountDownLatch failed) {
+      this.failed = failed;
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {}
+
+    @Override
+    public void onNext(EventSubscription.Event event) {}
+
+    @Override
+    public void onError(Throwable t) {
+      failed.countDown();
+    }
+
+    @Override
+    public void onComplete() {}
+  }
+
+  @Test
+  @SneakyThrows
+  public void closeTest() {
+    EventSubscription subscription = new EventSubscription(1);
+    List<EventSubscription.Event> consumed = new ArrayList<>();
+    Thread consumer = new Thread(() -> subscription.forEach(consumed::add));
+    consumer.start();
+    publish(subscription, "app-0");
+
+    Thread producer =
+        new Thread(
+            () -> {
+              for (int i = 1; i < 100; i++) {
+                publish(subscription, "app-" + i);
+              }
+            });
+    producer.start();
+    Thread.sleep(100);
+
+    // consumers and producers are released even if the buffer is refilled while closing
+    subscription.close();
+    consumer.join(5_000);
+    producer.join(5_000);
+    Assertions.assertFalse(consumer.isAlive(), "Consumer not released");
+    Assertions.assertFalse(producer.isAlive(), "Producer not released");
+    Assertions.assertFalse(subscription.iterator().hasNext());
+    Assertions.assertFalse(consumed.isEmpty());
+  }
+}
@@ -0,0 +1,607 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.kubernetes.client.util.KubeConfig;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
+
+import static org.gbif.stackable.SparkAppUtils.STACKABLE_SPARK_GROUP;
+import static org.gbif.stackable.SparkAppUtils.STACKABLE_SPARK_PLURAL;
+import static org.gbif.stackable.SparkAppUtils.STACKABLE_SPARK_VERSION;
+
+/**
+ * In-process stand-in of the K8 API server for the Stackable {@code sparkapplications} resource.
+ *
+ * <p>Supports create, get, delete, merge-patch, paged list and watch with resourceVersions. Latency
+ * and error responses (e.g. 429, 410 or 5xx) can be injected and phases can be changed to simulate
+ * running applications.
+ */
+public class FakeSparkApiServer implements Closeable {
+
+  public static final String NAMESPACE = "test";
+
+  private static final String PATH_PREFIX =
+      "/apis/" + STACKABLE_SPARK_GROUP + "/" + STACKABLE_SPARK_VERSION + "/namespaces/";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /** Maximum number of events kept to serve watches from a resourceVersion. */
+  private static final int MAX_RETAINED_EVENTS = 1_000_000;
+
+  private static final long DEFAULT_WATCH_TIMEOUT_MILLIS = 5_000L;
+
+  private static class WatchEvent {
+    private final String type;
+    private final ObjectNode object;
+    private final long emittedNanos = System.nanoTime();
+
+    private WatchEvent(String type, ObjectNode object) {
+      this.type = type;
+      this.object = object;
+    }
+  }
+
+  private final HttpServer server;
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  /** Objects by namespace/name. */
+  private final Map<String, ObjectNode> objects = new LinkedHashMap<>();
+
+  private final List<WatchEvent> events = new ArrayList<>();
+
+  /** resourceVersion of the first retained event. */
+  private long firstEventResourceVersion = 1;
+
+  private long resourceVersion = 0;
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private final AtomicInteger forcedFailures = new AtomicInteger();
+
+  private final AtomicInteger stalledWatches = new AtomicInteger();
+
+  private volatile int forcedFailureCode;
+
+  private volatile boolean closed = false;
+
+  /** Fixed latency added to each request. */
+  @Setter private volatile long latencyMillis = 0;
+
+  /** Rate, from 0 to 1, of requests that fail with the failureCode. */
+  @Setter private volatile double failureRate = 0;
+
+  @Setter private volatile int failureCode = 500;
+
+  /** Time after which watches are closed by the server if the client does not set a timeout. */
+  @Setter private volatile long watchTimeoutMillis = DEFAULT_WATCH_TIMEOUT_MILLIS;
+
+  /** Idle time after which a BOOKMARK is sent to watches that allow them. */
+  @Setter private volatile long bookmarkIntervalMillis = 1_000L;
+
+  @Getter private final String url;
+
+  @SneakyThrows
+  public FakeSparkApiServer() {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort();
+  }
+
+  /** KubeConfig pointing to this server using the {@link #NAMESPACE} namespace. */
+  @SneakyThrows
+  public KubeConfig kubeConfig() {
+    String config =
+        "apiVersion: v1\n"
+            + "kind: Config\n"
+            + "clusters:\n"
+            + "- name: fake\n"
+            + "  cluster:\n"
+            + "    server: "
+            + url
+            + "\n"
+            + "contexts:\n"
+            + "- name: fake\n"
+            + "  context:\n"
+            + "    cluster: fake\n"
+            + "    namespace: "
+            + NAMESPACE
+            + "\n"
+            + "    user: fake\n"
+            + "current-context: fake\n"
+            + "users:\n"
+            + "- name: fake\n"
+            + "  user:\n"
+            + "    token: fake-token\n";
+    return KubeConfig.loadKubeConfig(new StringReader(config));
+  }
+
+  /** The next requests will fail with the code. */
+  public void failNext(int code, int times) {
+    forcedFailureCode = code;
+    forcedFailures.set(times);
+  }
+
+  /** The next watches are accepted but never send anything, like a half-open connection. */
+  public void stallNextWatches(int times) {
+    stalledWatches.set(times);
+  }
+
+  /** Total number of requests received. */
+  public int getRequestCount() {
+    return requests.get();
+  }
+
+  /** Number of applications stored. */
+  public synchronized int size() {
+    return objects.size();
+  }
+
+  /** Current resourceVersion of the server. */
+  public synchronized long getResourceVersion() {
+    return resourceVersion;
+  }
+
+  /** Drops the retained events so watches from an older resourceVersion get a 410 Gone. */
+  public synchronized void compact() {
+    events.clear();
+    firstEventResourceVersion = resourceVersion + 1;
+  }
+
+  /** System.nanoTime at which the event with a resourceVersion was emitted, or -1 if unknown. */
+  public synchronized long emittedNanos(long eventResourceVersion) {
+    int index = (int) (eventResourceVersion - firstEventResourceVersion);
+    return index >= 0 && index < events.size() ? events.get(index).emittedNanos : -1;
+  }
+
+  /** uid of an application, null if it does not exist. */
+  public synchronized String uid(String name) {
+    ObjectNode object = objects.get(key(NAMESPACE, name));
+    return object != null ? object.path("metadata").path("uid").asText(null) : null;
+  }
+
+  /** Sets the status.phase of an application, e.g. "Running", and emits a MODIFIED event. */
+  public synchronized void setPhase(String name, String phase) {
+    ObjectNode object = objects.get(key(NAMESPACE, name));
+    if (object == null) {
+      throw new IllegalArgumentException("Application not found " + name);
+    }
+    ObjectNode updated = object.deepCopy();
+    updated.putObject("status").put("phase", phase);
+    update(updated, "MODIFIED");
+  }
+
+  /** Applies random phase changes to random applications to simulate a busy cluster. */
+  public void churn(int updates, String... phases) {
+    for (int i = 0; i < updates; i++) {
+      synchronized (this) {
+        if (objects.isEmpty()) {
+          return;
+        }
+        List<String> keys = new ArrayList<>(objects.keySet());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ObjectNode object = objects.get(keys.get(random.nextInt(keys.size())));
+        setPhase(
+            object.path("metadata").path("name").asText(),
+            phases[random.nextInt(phases.length)]);
+      }
+    }
+  }
+
+  private static String key(String namespace, String name) {
+    return namespace + "/" + name;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      if (latencyMillis > 0) {
+        Thread.sleep(latencyMillis);
+      }
+      byte[] body = readBody(exchange.getRequestBody());
+      String path = exchange.getRequestURI().getPath();
+      Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+      String[] parts =
+          path.startsWith(PATH_PREFIX) ? path.substring(PATH_PREFIX.length()).split("/") : null;
+      if (parts == null || parts.length < 2 || !STACKABLE_SPARK_PLURAL.equals(parts[1])) {
+        sendStatus(exchange, 404, "NotFound", "Unknown path " + path);
+        return;
+      }
+      int fault = nextFault();
+      if (fault > 0) {
+        sendStatus(exchange, fault, "InjectedFault", "Injected fault " + fault);
+        return;
+      }
+      String namespace = parts[0];
+      String method = exchange.getRequestMethod();
+      if (parts.length == 2 && "GET".equals(method)) {
+        if (Boolean.parseBoolean(query.get("watch"))) {
+          watch(exchange, namespace, query);
+        } else {
+          list(exchange, namespace, query);
+        }
+      } else if (parts.length == 2 && "POST".equals(method)) {
+        create(exchange, namespace, body);
+      } else if (parts.length >= 3 && "GET".equals(method)) {
+        get(exchange, namespace, parts[2]);
+      } else if (parts.length >= 3 && "DELETE".equals(method)) {
+        delete(exchange, namespace, parts[2]);
+      } else if (parts.length >= 3 && "PATCH".equals(method)) {
+        patch(exchange, namespace, parts[2], body);
+      } else {
+        sendStatus(exchange, 405, "MethodNotAllowed", method + " " + path);
+      }
+    } catch (Exception ex) {
+      sendStatus(exchange, 500, "InternalError", String.valueOf(ex.getMessage()));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private int nextFault() {
+    if (forcedFailures.getAndUpdate(f -> Math.max(0, f - 1)) > 0) {
+      return forcedFailureCode;
+    }
+    if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+      return failureCode;
+    }
+    return 0;
+  }
+
+  private synchronized void get(HttpExchange exchange, String namespace, String name)
+      throws IOException {
+    ObjectNode object = objects.get(key(namespace, name));
+    if (object == null) {
+      sendStatus(exchange, 404, "NotFound", "Application " + name + " not found");
+    } else {
+      send(exchange, 200, object);
+    }
+  }
+
+  private void create(HttpExchange exchange, String namespace, byte[] body) throws IOException {
+    ObjectNode object = (ObjectNode) MAPPER.readTree(body);
+    ObjectNode metadata = object.with("metadata");
+    String name = metadata.path("name").asText(null);
+    if (name == null) {
+      sendStatus(exchange, 422, "Invalid", "metadata.name is required");
+      return;
+    }
+    ObjectNode created;
+    synchronized (this) {
+      if (objects.containsKey(key(namespace, name))) {
+        sendStatus(exchange, 409, "AlreadyExists", "Application " + name + " already exists");
+        return;
+      }
+      metadata.put("namespace", namespace);
+      metadata.put("uid", UUID.randomUUID().toString());
+      metadata.put("creationTimestamp", Instant.now().truncatedTo(ChronoUnit.SECONDS).toString());
+      created = update(object, "ADDED");
+    }
+    send(exchange, 201, created);
+  }
+
+  private void delete(HttpExchange exchange, String namespace, String name) throws IOException {
+    ObjectNode deleted;
+    synchronized (this) {
+      ObjectNode object = objects.get(key(namespace, name));
+      if (object == null) {
+        sendStatus(exchange, 404, "NotFound", "Application " + name + " not found");
+        return;
+      }
+      deleted = update(object.deepCopy(), "DELETED");
+    }
+    send(exchange, 200, deleted);
+  }
+
+  private void patch(HttpExchange exchange, String namespace, String name, byte[] body)
+      throws IOException {
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    if (contentType == null || !contentType.startsWith("application/merge-patch+json")) {
+      sendStatus(exchange, 415, "UnsupportedMediaType", "Only merge patches are supported");
+      return;
+    }
+    JsonNode patch = MAPPER.readTree(body);
+    ObjectNode patched;
+    synchronized (this) {
+      ObjectNode object = objects.get(key(namespace, name));
+      if (object == null) {
+        sendStatus(exchange, 404, "NotFound", "Application " + name + " not found");
+        return;
+      }
+      patched = update((ObjectNode) mergePatch(object.deepCopy(), patch), "MODIFIED");
+    }
+    send(exchange, 200, patched);
+  }
+
+  /** RFC 7386 merge patch. */
+  private static JsonNode mergePatch(JsonNode target, JsonNode patch) {
+    if (!patch.isObject()) {
+      return patch;
+    }
+    ObjectNode result =
+        target != null && target.isObject() ? (ObjectNode) target : MAPPER.createObjectNode();
+    Iterator<Map.Entry<String, JsonNode>> fields = patch.fields();
+    while (fields.hasNext()) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      if (field.getValue().isNull()) {
+        result.remove(field.getKey());
+      } else {
+        result.set(field.getKey(), mergePatch(result.get(field.getKey()), field.getValue()));
+      }
+    }
+    return result;
+  }
+
+  /** Stores or removes the object with a new resourceVersion and records the event. */
+  private synchronized ObjectNode update(ObjectNode object, String type) {
+    resourceVersion++;
+    ObjectNode metadata = object.with("metadata");
+    metadata.put("resourceVersion", String.valueOf(resourceVersion));
+    metadata
+        .putArray("managedFields")
+        .addObject()
+        .put("manager", "fake-api-server")
+        .put("operation", "Update")
+        .put("time", Instant.now().truncatedTo(ChronoUnit.SECONDS).toString());
+    String objectKey = key(metadata.path("namespace").asText(), metadata.path("name").asText());
+    if ("DELETED".equals(type)) {
+      objects.remove(objectKey);
+    } else {
+      objects.put(objectKey, object);
+    }
+    if (events.size() >= MAX_RETAINED_EVENTS) {
+      events.subList(0, MAX_RETAINED_EVENTS / 2).clear();
+      firstEventResourceVersion += MAX_RETAINED_EVENTS / 2;
+    }
+    events.add(new WatchEvent(type, object));
+    notifyAll();
+    return object;
+  }
+
+  private void list(HttpExchange exchange, String namespace, Map<String, String> query)
+      throws IOException {
+    Map<String, String> selector = parseSelector(query.get("labelSelector"));
+    int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : 0;
+    int offset = query.containsKey("continue") ? Integer.parseInt(query.get("continue")) : 0;
+    ObjectNode list = MAPPER.createObjectNode();
+    list.put("apiVersion", STACKABLE_SPARK_GROUP + "/" + STACKABLE_SPARK_VERSION);
+    list.put("kind", "SparkApplicationList");
+    synchronized (this) {
+      List<ObjectNode> matches = new ArrayList<>();
+      for (ObjectNode object : objects.values()) {
+        if (matches(object, namespace, selector)) {
+          matches.add(object);
+        }
+      }
+      int end = limit > 0 ? Math.min(matches.size(), offset + limit) : matches.size();
+      ObjectNode metadata = list.putObject("metadata");
+      metadata.put("resourceVersion", String.valueOf(resourceVersion));
+      if (end < matches.size()) {
+        metadata.put("continue", String.valueOf(end));
+      }
+      list.putArray("items").addAll(matches.subList(Math.min(offset, end), end));
+    }
+    send(exchange, 200, list);
+  }
+
+  private void watch(HttpExchange exchange, String namespace, Map<String, String> query)
+      throws IOException, InterruptedException {
+    Map<String, String> selector = parseSelector(query.get("labelSelector"));
+    long timeoutMillis =
+        query.containsKey("timeoutSeconds")
+            ? Long.parseLong(query.get("timeoutSeconds")) * 1000L
+            : watchTimeoutMillis;
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    String fromVersion = query.get("resourceVersion");
+    boolean bookmarks = Boolean.parseBoolean(query.get("allowWatchBookmarks"));
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, 0);
+    if (stalledWatches.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+      while (!closed && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      exchange.close();
+      return;
+    }
+    try (OutputStream out = exchange.getResponseBody()) {
+      List<String> lines = new ArrayList<>();
+      long from;
+      synchronized (this) {
+        if (fromVersion == null || fromVersion.isEmpty() || "0".equals(fromVersion)) {
+          for (ObjectNode object : objects.values()) {
+            if (matches(object, namespace, selector)) {
+              lines.add(eventLine("ADDED", object));
+            }
+          }
+          from = resourceVersion;
+        } else {
+          from = Long.parseLong(fromVersion);
+          if (from + 1 < firstEventResourceVersion) {
+            lines.add(eventLine("ERROR", status(410, "Expired", "too old resource version")));
+            from = Long.MAX_VALUE;
+          }
+        }
+      }
+      write(out, lines);
+      long lastWrite = System.currentTimeMillis();
+      while (!closed && from != Long.MAX_VALUE && System.currentTimeMillis() < deadline) {
+        lines.clear();
+        synchronized (this) {
+          int index = (int) Math.max(0, from + 1 - firstEventResourceVersion);
+          if (index < events.size()) {
+            for (WatchEvent event : events.subList(index, events.size())) {
+              if (matches(event.object, namespace, selector)) {
+                lines.add(eventLine(event.type, event.object));
+              }
+            }
+            from = resourceVersion;
+          } else if (bookmarks
+              && System.currentTimeMillis() - lastWrite >= bookmarkIntervalMillis) {
+            lines.add(bookmarkLine(from));
+          } else {
+            wait(Math.max(1, Math.min(100, deadline - System.currentTimeMillis())));
+            continue;
+          }
+        }
+        // written outside the monitor, a slow client must not block other requests
+        write(out, lines);
+        lastWrite = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /** BOOKMARK event, only carries the resourceVersion. */
+  private static String bookmarkLine(long bookmarkVersion) throws IOException {
+    ObjectNode object = MAPPER.createObjectNode();
+    object.put("apiVersion", STACKABLE_SPARK_GROUP + "/" + STACKABLE_SPARK_VERSION);
+    object.put("kind", "SparkApplication");
+    object.putObject("metadata").put("resourceVersion", String.valueOf(bookmarkVersion));
+    return eventLine("BOOKMARK", object);
+  }
+
+  private static void write(OutputStream out, List<String> lines) throws IOException {
+    for (String line : lines) {
+      out.write(line.getBytes(StandardCharsets.UTF_8));
+    }
+    out.flush();
+  }
+
+  private static String eventLine(String type, ObjectNode object) throws IOException {
+    ObjectNode event = MAPPER.createObjectNode();
+    event.put("type", type);
+    event.set("object", object);
+    return MAPPER.writeValueAsString(event) + "\n";
+  }
+
+  private static boolean matches(
+      ObjectNode object, String namespace, Map<String, String> selector) {
+    JsonNode metadata = object.path("metadata");
+    if (!namespace.equals(metadata.path("namespace").asText())) {
+      return false;
+    }
+    for (Map.Entry<String, String> label : selector.entrySet()) {
+      if (!label.getValue().equals(metadata.path("labels").path(label.getKey()).asText(null))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Map<String, String> parseSelector(String selector) {
+    if (selector == null || selector.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> labels = new HashMap<>();
+    for (String term : selector.split(",")) {
+      String[] keyValue = term.split("=", 2);
+      labels.put(keyValue[0], keyValue.length > 1 ? keyValue[1] : "");
+    }
+    return labels;
+  }
+
+  @SneakyThrows
+  private static Map<String, String> parseQuery(String rawQuery) {
+    Map<String, String> query = new HashMap<>();
+    if (rawQuery != null) {
+      for (String param : rawQuery.split("&")) {
+        String[] keyValue = param.split("=", 2);
+        query.put(
+            URLDecoder.decode(keyValue[0], "UTF-8"),
+            keyValue.length > 1 ? URLDecoder.decode(keyValue[1], "UTF-8") : "");
+      }
+    }
+    return query;
+  }
+
+  private static byte[] readBody(InputStream inputStream) throws IOException {
+    byte[] buffer = new byte[8192];
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int read;
+    while ((read = inputStream.read(buffer)) != -1) {
+      body.write(buffer, 0, read);
+    }
+    return body.toByteArray();
+  }
+
+  private static ObjectNode status(int code, String reason, String message) {
+    ObjectNode status = MAPPER.createObjectNode();
+    status.put("apiVersion", "v1");
+    status.put("kind", "Status");
+    status.put("status", "Failure");
+    status.put("code", code);
+    status.put("reason", reason);
+    status.put("message", message);
+    return status;
+  }
+
+  private static void sendStatus(HttpExchange exchange, int code, String reason, String message)
+      throws IOException {
+    send(exchange, code, status(code, reason, message));
+  }
+
+  private static void send(HttpExchange exchange, int code, JsonNode body) throws IOException {
+    byte[] bytes = MAPPER.writeValueAsBytes(body);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    synchronized (this) {
+      notifyAll();
+    }
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.kubernetes.client.openapi.ApiException;
+import lombok.SneakyThrows;
+
+/** Tests the controller and the watcher against a {@link FakeSparkApiServer}. */
+public class K8StackableSparkControllerTest {
+
+  private FakeSparkApiServer server;
+
+  private K8StackableSparkController controller;
+
+  static SparkCrd sparkCrd(String name) {
+    return SparkCrd.builder()
+        .metadata(SparkCrd.Metadata.builder().name(name).build())
+        .spec(
+            SparkCrd.Spec.builder()
+                .mainApplicationFile("local:///stackable/spark/jobs/job.jar")
+                .mainClass("org.gbif.Job")
+                .build())
+        .build();
+  }
+
+  @BeforeEach
+  public void setUp() {
+    server = new FakeSparkApiServer();
+    controller = K8StackableSparkController.builder().kubeConfig(server.kubeConfig()).build();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  @SneakyThrows
+  public void submitGetAndStopTest() {
+    controller.submitSparkApplication(sparkCrd("app-1"));
+    Assertions.assertEquals(
+        K8StackableSparkController.Phase.INITIATING, controller.getApplicationPhase("app-1"));
+
+    server.setPhase("app-1", "Running");
+    Assertions.assertEquals(
+        K8StackableSparkController.Phase.RUNNING, controller.getApplicationPhase("app-1"));
+
+    // Submitting again replaces the existing application
+    controller.submitSparkApplication(sparkCrd("app-1"));
+    Assertions.assertEquals(
+        K8StackableSparkController.Phase.INITIATING, controller.getApplicationPhase("app-1"));
+
+    controller.stopApplication("app-1");
+    Assertions.assertNull(controller.getApplication("app-1"));
+    Assertions.assertEquals(0, server.size());
+  }
+
+  @Test
+  @SneakyThrows
+  public void getPhasesTest() {
+    for (int i = 0; i < 1_200; i++) {
+      controller.submitSparkApplication(sparkCrd("app-" + i));
+    }
+    server.setPhase("app-1", "Running");
+    server.setPhase("app-1100", "Failed");
+
+    int requests = server.getRequestCount();
+    Map<String, K8StackableSparkController.Phase> phases =
+        controller.getPhases(Arrays.asList("app-0", "app-1", "app-1100", "missing"));
+    // 1200 applications are listed in 3 pages
+    Assertions.assertEquals(3, server.getRequestCount() - requests);
+    Assertions.assertEquals(3, phases.size());
+    Assertions.assertEquals(K8StackableSparkController.Phase.INITIATING, phases.get("app-0"));
+    Assertions.assertEquals(K8StackableSparkController.Phase.RUNNING, phases.get("app-1"));
+    Assertions.assertEquals(K8StackableSparkController.Phase.FAILED, phases.get("app-1100"));
+
+    Assertions.assertEquals(1_200, controller.getPhases(Collections.emptyMap()).size());
+  }
+
+  @Test
+  @SneakyThrows
+  public void submitIfChangedTest() {
+    SparkCrd sparkCrd = sparkCrd("app-1");
+    AbstractMap<String, Object> first = controller.submitSparkApplicationIfChanged(sparkCrd, null);
+    String uid = uid(first);
+
+    // Same spec: the running application is kept
+    server.setPhase("app-1", "Running");
+    Assertions.assertEquals(
+        uid, uid(controller.submitSparkApplicationIfChanged(sparkCrd("app-1"), null)));
+
+    // Different spec: the application is replaced
+    SparkCrd changed =
+        sparkCrd.toBuilder()
+            .spec(sparkCrd.getSpec().toBuilder().mainClass("org.gbif.OtherJob").build())
+            .build();
+    String changedUid = uid(controller.submitSparkApplicationIfChanged(changed, null));
+    Assertions.assertNotEquals(uid, changedUid);
+
+    // Same spec but finished: the application is resubmitted
+    server.setPhase("app-1", "Succeeded");
+    Assertions.assertNotEquals(
+        changedUid, uid(controller.submitSparkApplicationIfChanged(changed, null)));
+  }
+
+  @Test
+  @SneakyThrows
+  public void submitIfChangedCacheTest() {
+    SparkApplicationCache applicationCache = new SparkApplicationCache();
+    K8StackableSparkController cachedController =
+        K8StackableSparkController.builder()
+            .kubeConfig(server.kubeConfig())
+            .applicationCache(applicationCache)
+            .build();
+    SparkCrd sparkCrd = sparkCrd("app-1");
+    AbstractMap<String, Object> first =
+        cachedController.submitSparkApplicationIfChanged(sparkCrd, null);
+    String uid = uid(first);
+
+    // the controller's own create is cached, no request is needed
+    int requests = server.getRequestCount();
+    Assertions.assertEquals(
+        uid, uid(cachedController.submitSparkApplicationIfChanged(sparkCrd, null)));
+    Assertions.assertEquals(requests, server.getRequestCount());
+
+    // an outdated entry, e.g. of a watcher behind, doesn't replace the healthy application
+    AbstractMap<String, Object> outdated = new HashMap<>(first);
+    outdated.put("metadata", Collections.singletonMap("name", "app-1"));
+    applicationCache.onEvent(
+        StackableSparkWatcher.EventType.MODIFIED,
+        "app-1",
+        K8StackableSparkController.Phase.RUNNING,
+        outdated);
+    Assertions.assertEquals(
+        uid, uid(cachedController.submitSparkApplicationIfChanged(sparkCrd, null)));
+
+    // deleted while the watcher was disconnected: the re-list drops the stale entry
+    controller.stopApplication("app-1");
+    applicationCache.onRelist();
+    Assertions.assertNull(applicationCache.get("app-1"));
+    Assertions.assertNotEquals(
+        uid, uid(cachedController.submitSparkApplicationIfChanged(sparkCrd, null)));
+    Assertions.assertEquals(1, server.size());
+  }
+
+  private static String uid(AbstractMap<String, Object> application) {
+    return (String) ((AbstractMap<String, Object>) application.get("metadata")).get("uid");
+  }
+
+  @Test
+  @SneakyThrows
+  public void invalidSubmissionTest() {
+    controller.submitSparkApplication(sparkCrd("app-1"));
+    int requests = server.getRequestCount();
+
+    SparkCrd invalid = sparkCrd("app-1");
+    invalid.getSpec().setMainApplicationFile(null);
+    Assertions.assertThrows(
+        IllegalArgumentException.class, () -> controller.submitSparkApplication(invalid));
+
+    // rejected locally, the existing application is kept
+    Assertions.assertEquals(requests, server.getRequestCount());
+    Assertions.assertEquals(1, server.size());
+  }
+
+  @Test
+  @SneakyThrows
+  public void patchTest() {
+    SparkCrd current = sparkCrd("app-1");
+    current.getSpec().setArgs(Collections.singletonList("--dry-run"));
+    current.getSpec().setRoleGroups(taskGroupRoleGroups("group-a"));
+    controller.submitSparkApplication(current);
+    String uid = server.uid("app-1");
+
+    SparkCrd desired =
+        current.toBuilder()
+            .metadata(
+                current.getMetadata().toBuilder()
+                    .labels(Collections.singletonMap("team", "data"))
+                    .build())
+            .spec(
+                current.getSpec().toBuilder()
+                    .args(null)
+                    .executor(SparkCrd.Executor.builder().instances(4).build())
+                    .roleGroups(taskGroupRoleGroups("group-b"))
+                    .build())
+            .build();
+
+    ObjectNode patch = MergePatch.diff(current, desired);
+    Assertions.assertEquals(
+        "{\"metadata\":{\"labels\":{\"team\":\"data\"}},"
+            + "\"spec\":{\"args\":null,\"roleGroups\":{\"default\":{\"podOverrides\":"
+            + "{\"metadata\":{\"annotations\":"
+            + "{\"yunikorn.apache.org/task-group-name\":\"group-b\"}}}}},"
+            + "\"executor\":{\"instances\":4}}}",
+        patch.toString());
+
+    controller.patchSparkApplication(current, desired);
+
+    AbstractMap<String, Object> application = controller.getApplication("app-1");
+    Map<String, Object> metadata = (Map<String, Object>) application.get("metadata");
+    Map<String, Object> spec = (Map<String, Object>) application.get("spec");
+    Assertions.assertEquals(uid, metadata.get("uid"));
+    Assertions.assertEquals(Collections.singletonMap("team", "data"), metadata.get("labels"));
+    Assertions.assertFalse(spec.containsKey("args"));
+    Assertions.assertEquals(
+        4, ((Number) ((Map<String, Object>) spec.get("executor")).get("instances")).intValue());
+
+    // created and patched with the same field names, the annotated ones included
+    Map<String, Object> roleGroups = (Map<String, Object>) spec.get("roleGroups");
+    Assertions.assertEquals(Collections.singleton("default"), roleGroups.keySet());
+    Map<String, Object> podMetadata =
+        (Map<String, Object>)
+            ((Map<String, Object>) ((Map<String, Object>) roleGroups.get("default"))
+                    .get("podOverrides"))
+                .get("metadata");
+    Assertions.assertEquals(
+        Collections.singletonMap("yunikorn.apache.org/task-group-name", "group-b"),
+        podMetadata.get("annotations"));
+  }
+
+  private static SparkCrd.Spec.RoleGroups taskGroupRoleGroups(String taskGroupName) {
+    return SparkCrd.Spec.RoleGroups.builder()
+        ._default(
+            SparkCrd.Spec.RoleGroups.Default.builder()
+                .podOverrides(
+                    SparkCrd.PodOverrides.builder()
+                        .metadata(
+                            SparkCrd.PodOverrides.Metadata.builder()
+                                .annotations(
+                                    SparkCrd.PodOverrides.Metadata.Annotations.builder()
+                                        .taskGroupName(taskGroupName)
+                                        .build())
+                                .build())
+                        .build())
+                .build())
+        .build();
+  }
+
+  @Test
+  public void submitBatchTest() {
+    K8StackableSparkController.BatchResult result =
+        controller.submitSparkApplications(
+            IntStream.range(0, 50).parallel().mapToObj(i -> sparkCrd("app-" + i)));
+
+    Assertions.assertTrue(result.isSuccessful());
+    Assertions.assertEquals(50, result.getSubmitted().size());
+    Assertions.assertEquals(50, server.size());
+  }
+
+  @Test
+  public void submitBatchFailuresTest() {
+    server.failNext(429, 1);
+    K8StackableSparkController.BatchResult result =
+        controller.submitSparkApplications(
+            Stream.of(sparkCrd("app-0"), sparkCrd("Invalid_Name"), sparkCrd("app-2")));
+
+    // failures don't stop the batch
+    Assertions.assertEquals(Collections.singletonList("app-2"), result.getSubmitted());
+    Assertions.assertEquals(2, result.getFailures().size());
+    Assertions.assertEquals(429, ((ApiException) result.getFailures().get("app-0")).getCode());
+    Assertions.assertTrue(
+        result.getFailures().get("Invalid_Name") instanceof IllegalArgumentException);
+    Assertions.assertEquals(1, server.size());
+  }
+
+  @Test
+  @SneakyThrows
+  public void submitBatchParseFailuresTest(@TempDir Path directory) {
+    Path broken = directory.resolve("a.yaml");
+    String brokenYaml = sparkCrd("app-0").toYamlString() + "\n---\nspec: [\n";
+    Files.write(broken, brokenYaml.getBytes(StandardCharsets.UTF_8));
+    Files.write(
+        directory.resolve("b.yaml"),
+        sparkCrd("app-1").toYamlString().getBytes(StandardCharsets.UTF_8));
+
+    // the broken document is a failure of the batch, the other files are still submitted
+    K8StackableSparkController.BatchResult result =
+        controller.submitSparkApplications(directory, false);
+
+    Assertions.assertEquals(Arrays.asList("app-0", "app-1"), result.getSubmitted());
+    Assertions.assertEquals(1, result.getFailures().size());
+    ConfigUtils.SparkCrdParseException failure =
+        (ConfigUtils.SparkCrdParseException) result.getFailures().get(broken + "#2");
+    Assertions.assertEquals(broken, failure.getFile());
+    Assertions.assertEquals(2, failure.getDocument());
+    Assertions.assertEquals(2, server.size());
+
+    // without an error handler the parse error is thrown
+    try (Stream<SparkCrd> crds = ConfigUtils.streamSparkCrds(broken)) {
+      Assertions.assertThrows(
+          ConfigUtils.SparkCrdParseException.class, () -> crds.forEach(crd -> {}));
+    }
+  }
+
+  @Test
+  public void injectedFaultsTest() {
+    server.failNext(429, 1);
+    ApiException exception =
+        Assertions.assertThrows(
+            ApiException.class, () -> controller.submitSparkApplication(sparkCrd("app-1")));
+    Assertions.assertEquals(429, exception.getCode());
+  }
+
+  @Test
+  @SneakyThrows
+  public void watchTest() {
+    try (EventSubscription subscription = new EventSubscription(100);
+        StackableSparkWatcher watcher =
+            new StackableSparkWatcher(server.kubeConfig(), subscription, "app-.*")) {
+      watcher.start(VirtualThreads.threadFactory("watcher-test-"));
+
+      controller.submitSparkApplication(sparkCrd("app-1"));
+      // the ADDED event proves the watch is established, before or after the submit
+      List<EventSubscription.Event> events = subscription.poll(1, 10, TimeUnit.SECONDS);
+      Assertions.assertEquals(1, events.size(), "ADDED event not received");
+
+      server.setPhase("app-1", "Running");
+      server.setPhase("app-1", "Succeeded");
+      while (events.size() < 3) {
+        List<EventSubscription.Event> more = subscription.poll(3, 10, TimeUnit.SECONDS);
+        Assertions.assertFalse(more.isEmpty(), "Expected watch events not received");
+        events.addAll(more);
+      }
+      Assertions.assertEquals(StackableSparkWatcher.EventType.ADDED, events.get(0).getEventType());
+      Assertions.assertEquals(
+          K8StackableSparkController.Phase.RUNNING, events.get(1).getPhase());
+      Assertions.assertEquals(
+          K8StackableSparkController.Phase.SUCCEEDED, events.get(2).getPhase());
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void stalledWatchTest() {
+    server.setWatchTimeoutMillis(60_000L);
+    server.stallNextWatches(1);
+    try (EventSubscription subscription = new EventSubscription(100);
+        StackableSparkWatcher watcher =
+            new StackableSparkWatcher(server.kubeConfig(), subscription, "app-.*")
+                .maxSilence(Duration.ofMillis(500))) {
+      Thread watcherThread = watcher.start(VirtualThreads.threadFactory("watcher-test-"));
+
+      controller.submitSparkApplication(sparkCrd("app-1"));
+
+      // the first watch never sends anything, the event arrives after the forced reconnect
+      List<EventSubscription.Event> events = subscription.poll(1, 10, TimeUnit.SECONDS);
+      Assertions.assertEquals(1, events.size());
+      Assertions.assertEquals("app-1", events.get(0).getAppName());
+      Assertions.assertTrue(watcher.getMillisSinceLastEvent() < 10_000L);
+      // delayed by the stalled watch, but the change happened less than 10 seconds ago
+      long lag = watcher.getEventLagMillis();
+      Assertions.assertTrue(lag >= 0 && lag < 10_000L, "Unexpected event lag " + lag);
+
+      watcher.stop();
+      watcherThread.join(5_000L);
+      Assertions.assertFalse(watcherThread.isAlive(), "Watcher did not stop promptly");
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void slowListenerTest() {
+    server.setWatchTimeoutMillis(60_000L);
+    // bookmarks keep the watch alive, only the time blocked in the listener could be silence
+    server.setBookmarkIntervalMillis(100L);
+    List<String> events = Collections.synchronizedList(new ArrayList<>());
+    StackableSparkWatcher.EventsListener slowListener =
+        (eventType, appName, phase, payload) -> {
+          try {
+            Thread.sleep(1_500L);
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+          events.add(appName);
+        };
+    try (StackableSparkWatcher watcher =
+        new StackableSparkWatcher(server.kubeConfig(), slowListener, "app-.*")
+            .maxSilence(Duration.ofMillis(500))) {
+      watcher.start(VirtualThreads.threadFactory("watcher-test-"));
+      controller.submitSparkApplication(sparkCrd("app-1"));
+      controller.submitSparkApplication(sparkCrd("app-2"));
+
+      // the time blocked in the listener is not silence, the watch is not restarted
+      long deadline = System.currentTimeMillis() + 10_000L;
+      while (events.isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50L);
+      }
+      int requests = server.getRequestCount();
+      while (events.size() < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50L);
+      }
+      Assertions.assertEquals(Arrays.asList("app-1", "app-2"), events);
+      Assertions.assertEquals(requests, server.getRequestCount());
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void nonRetryableWatchErrorTest() {
+    server.failNext(403, 1);
+    try (StackableSparkWatcher watcher =
+        new StackableSparkWatcher(server.kubeConfig(), (t, a, p, o) -> {}, null)) {
+      Thread watcherThread = watcher.start(VirtualThreads.threadFactory("watcher-test-"));
+      watcherThread.join(5_000L);
+      Assertions.assertFalse(watcherThread.isAlive(), "Watcher retried a forbidden watch");
+      Assertions.assertEquals(1, server.getRequestCount());
+    }
+  }
+}
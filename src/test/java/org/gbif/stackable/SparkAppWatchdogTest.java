@@ -0,0 +1,177 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import lombok.SneakyThrows;
+
+/** Tests the deadlines of {@link SparkAppWatchdog}. */
+public class SparkAppWatchdogTest {
+
+  private static Map<String, Object> payload(String annotation, String value) {
+    Map<String, Object> metadata = new HashMap<>();
+    metadata.put("annotations", new HashMap<>(Collections.singletonMap(annotation, value)));
+    return new HashMap<>(Collections.singletonMap("metadata", metadata));
+  }
+
+  @Test
+  @SneakyThrows
+  public void expiryTest() {
+    BlockingQueue<String> expired = new LinkedBlockingQueue<>();
+    try (SparkAppWatchdog watchdog =
+        SparkAppWatchdog.builder()
+            .budgets(
+                Collections.singletonMap(
+                    K8StackableSparkController.Phase.PENDING, Duration.ofMillis(100)))
+            .expiryAction((appName, phase, budget) -> expired.add(appName + ":" + phase))
+            .tickMillis(10)
+            .build()) {
+
+      watchdog.onEvent(
+          StackableSparkWatcher.EventType.ADDED,
+          "stuck",
+          K8StackableSparkController.Phase.PENDING,
+          new HashMap<>());
+      watchdog.onEvent(
+          StackableSparkWatcher.EventType.ADDED,
+          "started",
+          K8StackableSparkController.Phase.PENDING,
+          new HashMap<>());
+      // Running has no default budget, the pending deadline is cancelled
+      watchdog.onEvent(
+          StackableSparkWatcher.EventType.MODIFIED,
+          "started",
+          K8StackableSparkController.Phase.RUNNING,
+          new HashMap<>());
+      // Annotation overrides the default budget
+      watchdog.onEvent(
+          StackableSparkWatcher.EventType.ADDED,
+          "long",
+          K8StackableSparkController.Phase.RUNNING,
+          payload(SparkAppWatchdog.TIMEOUT_KEY_PREFIX + "running-timeout", "200ms"));
+
+      Assertions.assertEquals("stuck:PENDING", expired.poll(5, TimeUnit.SECONDS));
+      Assertions.assertEquals("long:RUNNING", expired.poll(5, TimeUnit.SECONDS));
+      Assertions.assertNull(expired.poll(300, TimeUnit.MILLISECONDS));
+      Assertions.assertEquals(0, watchdog.size());
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void creationTimestampTest() {
+    BlockingQueue<String> expired = new LinkedBlockingQueue<>();
+    try (SparkAppWatchdog watchdog =
+        SparkAppWatchdog.builder()
+            .budgets(
+                Collections.singletonMap(
+                    K8StackableSparkController.Phase.PENDING, Duration.ofHours(1)))
+            .expiryAction(
+                (appName, phase, budget) -> {
+                  if (appName.equals("slow")) {
+                    try {
+                      Thread.sleep(2_000);
+                    } catch (InterruptedException ex) {
+                      Thread.currentThread().interrupt();
+                    }
+                  }
+                  expired.add(appName + ":" + phase);
+                })
+            .tickMillis(10)
+            .build()) {
+
+      // pending for 2 hours before this process saw it, e.g. after a restart
+      Map<String, Object> metadata = new HashMap<>();
+      metadata.put("creationTimestamp", Instant.now().minus(Duration.ofHours(2)).toString());
+      Map<String, Object> payload = new HashMap<>(Collections.singletonMap("metadata", metadata));
+
+      watchdog.onEvent(
+          StackableSparkWatcher.EventType.ADDED,
+          "slow",
+          K8StackableSparkController.Phase.PENDING,
+          payload);
+      Thread.sleep(100);
+      // no status yet, it uses the pending budget
+      watchdog.onEvent(
+          StackableSparkWatcher.EventType.ADDED,
+          "stuck",
+          K8StackableSparkController.Phase.EMPTY,
+          payload);
+      watchdog.onEvent(
+          StackableSparkWatcher.EventType.ADDED,
+          "recent",
+          K8StackableSparkController.Phase.PENDING,
+          new HashMap<>());
+
+      // the slow action of the first application doesn't delay the second one
+      // reported with the budget phase
+      Assertions.assertEquals("stuck:PENDING", expired.poll(1, TimeUnit.SECONDS));
+      Assertions.assertEquals("slow:PENDING", expired.poll(5, TimeUnit.SECONDS));
+      Assertions.assertNull(expired.poll(100, TimeUnit.MILLISECONDS));
+      Assertions.assertEquals(1, watchdog.size());
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void dueDeadlineTest() {
+    BlockingQueue<String> expired = new LinkedBlockingQueue<>();
+    try (SparkAppWatchdog watchdog =
+        SparkAppWatchdog.builder()
+            .budgets(
+                Collections.singletonMap(
+                    K8StackableSparkController.Phase.PENDING, Duration.ofMinutes(1)))
+            .expiryAction((appName, phase, budget) -> expired.add(appName))
+            .tickMillis(1)
+            .build()) {
+      Map<String, Object> metadata = new HashMap<>();
+      metadata.put("creationTimestamp", Instant.now().minus(Duration.ofHours(1)).toString());
+      Map<String, Object> payload = new HashMap<>(Collections.singletonMap("metadata", metadata));
+
+      // deadlines already due fire on the next tick, none of them is lost
+      for (int i = 0; i < 500; i++) {
+        watchdog.onEvent(
+            StackableSparkWatcher.EventType.ADDED,
+            "app-" + i,
+            K8StackableSparkController.Phase.PENDING,
+            payload);
+      }
+      for (int i = 0; i < 500; i++) {
+        Assertions.assertNotNull(expired.poll(5, TimeUnit.SECONDS), "Deadline lost");
+      }
+      Assertions.assertEquals(0, watchdog.size());
+    }
+  }
+
+  @Test
+  public void parseDurationTest() {
+    Assertions.assertEquals(Duration.ofMinutes(30), SparkAppWatchdog.parseDuration("30m"));
+    Assertions.assertEquals(Duration.ofHours(6), SparkAppWatchdog.parseDuration("PT6H"));
+    Assertions.assertThrows(
+        IllegalArgumentException.class, () -> SparkAppWatchdog.parseDuration("6 hours"));
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Load harness: submits many applications to a {@link FakeSparkApiServer}, simulates phase churn
+ * and reports submit throughput, watch event throughput and event lag. The size of the run is set
+ * with the system properties {@code loadTest.applications} and {@code loadTest.updates}. It only runs
+ * when the system property {@code loadTest} is true.
+ */
+@Slf4j
+@Tag("load")
+@EnabledIfSystemProperty(named = "loadTest", matches = "true")
+public class SparkApplicationsLoadTest {
+
+  private static final int APPLICATIONS = Integer.getInteger("loadTest.applications", 1_000);
+
+  private static final int UPDATES = Integer.getInteger("loadTest.updates", 10_000);
+
+  @Test
+  @SneakyThrows
+  public void submitAndWatchLoadTest() {
+    try (FakeSparkApiServer server = new FakeSparkApiServer();
+        EventSubscription subscription = new EventSubscription(10_000);
+        StackableSparkWatcher watcher =
+            new StackableSparkWatcher(server.kubeConfig(), subscription, null)) {
+      server.setWatchTimeoutMillis(TimeUnit.MINUTES.toMillis(5));
+      K8StackableSparkController controller =
+          K8StackableSparkController.builder().kubeConfig(server.kubeConfig()).build();
+
+      long start = System.nanoTime();
+      for (int i = 0; i < APPLICATIONS; i++) {
+        controller.submitSparkApplication(K8StackableSparkControllerTest.sparkCrd("app-" + i));
+      }
+      long submitNanos = System.nanoTime() - start;
+      report("Submit", APPLICATIONS, submitNanos);
+
+      start = System.nanoTime();
+      watcher.start(VirtualThreads.threadFactory("watcher-load-"));
+      int expectedEvents = APPLICATIONS + UPDATES;
+      Thread churn =
+          new Thread(() -> server.churn(UPDATES, "Pending", "Running", "Succeeded", "Failed"));
+
+      int received = 0;
+      long maxLagNanos = 0;
+      long totalLagNanos = 0;
+      int lagSamples = 0;
+      while (received < expectedEvents) {
+        List<EventSubscription.Event> events = subscription.poll(1_000, 30, TimeUnit.SECONDS);
+        Assertions.assertFalse(
+            events.isEmpty(), "Timeout after receiving " + received + " of " + expectedEvents);
+        if (received == 0) {
+          // The initial list has been taken, churn from now on is delivered as MODIFIED events
+          churn.start();
+        }
+        long now = System.nanoTime();
+        for (EventSubscription.Event event : events) {
+          if (event.getEventType() != StackableSparkWatcher.EventType.MODIFIED) {
+            continue;
+          }
+          String resourceVersion =
+              SparkAppUtils.getResourceVersion((AbstractMap<String, Object>) event.getPayload());
+          long emitted = server.emittedNanos(Long.parseLong(resourceVersion));
+          if (emitted > 0) {
+            long lag = now - emitted;
+            maxLagNanos = Math.max(maxLagNanos, lag);
+            totalLagNanos += lag;
+            lagSamples++;
+          }
+        }
+        received += events.size();
+      }
+      churn.join();
+      report("Watch events", received, System.nanoTime() - start);
+      log.info(
+          "Event lag: mean {} ms, max {} ms over {} events",
+          String.format("%.2f", lagSamples > 0 ? totalLagNanos / 1e6 / lagSamples : 0d),
+          String.format("%.2f", maxLagNanos / 1e6),
+          lagSamples);
+      log.info("Requests served: {}", server.getRequestCount());
+      Assertions.assertEquals(APPLICATIONS, server.size());
+    }
+  }
+
+  private static void report(String operation, int count, long nanos) {
+    log.info(
+        "{}: {} in {} s, {}/s",
+        operation,
+        count,
+        String.format("%.2f", nanos / 1e9),
+        String.format("%.1f", count / Math.max(nanos / 1e9, 1e-9)));
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import lombok.SneakyThrows;
+
+/** Tests the sparkConf generated by {@link SparkConfProfiles}. */
+public class SparkConfProfilesTest {
+
+  private static final String TEST_FILE = "spark-cdrs.yaml";
+
+  @SneakyThrows
+  private static SparkCrd loadTestCrd() {
+    try (InputStream testFileInputStream =
+        SparkConfProfilesTest.class.getClassLoader().getResourceAsStream(TEST_FILE)) {
+      return SparkCrd.fromYaml(testFileInputStream);
+    }
+  }
+
+  @Test
+  public void shuffleHeavyProfileTest() {
+    SparkCrd sparkCrd = loadTestCrd();
+    SparkConfProfiles.Result result =
+        SparkConfProfiles.apply(
+            sparkCrd,
+            SparkConfProfiles.Profile.fromName("shuffle-heavy"),
+            Collections.singletonMap("spark.network.timeout", "600s"));
+    Map<String, String> sparkConf = result.getSparkCrd().getSpec().getSparkConf();
+
+    // 20% of the 8Gi executor limit is lower than the 4096 set, 20% of the 2Gi driver limit
+    Assertions.assertEquals("4096", sparkConf.get("spark.executor.memoryOverhead"));
+    Assertions.assertEquals("409", sparkConf.get("spark.driver.memoryOverhead"));
+    // 10 instances * 10 cores * 3
+    Assertions.assertEquals("300", sparkConf.get("spark.sql.shuffle.partitions"));
+    Assertions.assertEquals(
+        "-XX:+UseG1GC -XX:InitiatingHeapOccupancyPercent=35",
+        sparkConf.get("spark.executor.extraJavaOptions"));
+    Assertions.assertEquals(
+        "org.apache.spark.serializer.KryoSerializer", sparkConf.get("spark.serializer"));
+    Assertions.assertEquals("true", sparkConf.get("spark.sql.adaptive.enabled"));
+    Assertions.assertEquals("600s", sparkConf.get("spark.network.timeout"));
+    // Settings not touched by the profile are kept
+    Assertions.assertEquals("lz4", sparkConf.get("spark.io.compression.codec"));
+
+    Assertions.assertTrue(
+        result.getChanges().stream()
+            .anyMatch(
+                c ->
+                    c.getKey().equals("spark.driver.memoryOverhead")
+                        && c.getOldValue() == null
+                        && "409".equals(c.getNewValue())));
+    Assertions.assertTrue(
+        result.getChanges().stream()
+            .noneMatch(c -> c.getKey().equals("spark.executor.memoryOverhead")));
+    // The original CRD is not modified
+    Assertions.assertEquals(
+        "-XX:+UseConcMarkSweepGC",
+        sparkCrd.getSpec().getSparkConf().get("spark.executor.extraJavaOptions"));
+  }
+
+  @Test
+  public void memoryOverheadAndCmsOptionsTest() {
+    SparkCrd sparkCrd = loadTestCrd();
+    Map<String, String> sparkConf = new HashMap<>(sparkCrd.getSpec().getSparkConf());
+    sparkConf.put("spark.executor.memoryOverhead", "1g");
+    sparkConf.put(
+        "spark.executor.extraJavaOptions",
+        "-XX:+UseConcMarkSweepGC -XX:+UseCMSInitiatingOccupancyOnly"
+            + " -XX:CMSInitiatingOccupancyFraction=70 -XX:+CMSClassUnloadingEnabled"
+            + " -Dfile.encoding=UTF-8");
+    SparkCrd cms =
+        sparkCrd.toBuilder()
+            .spec(sparkCrd.getSpec().toBuilder().sparkConf(sparkConf).build())
+            .build();
+
+    Map<String, String> tuned =
+        SparkConfProfiles.apply(cms, SparkConfProfiles.Profile.SHUFFLE_HEAVY)
+            .getSparkCrd()
+            .getSpec()
+            .getSparkConf();
+
+    // 1g is lower than 20% of the 8Gi limit
+    Assertions.assertEquals("1638", tuned.get("spark.executor.memoryOverhead"));
+    Assertions.assertEquals(
+        "-Dfile.encoding=UTF-8 -XX:+UseG1GC -XX:InitiatingHeapOccupancyPercent=35",
+        tuned.get("spark.executor.extraJavaOptions"));
+  }
+
+  @Test
+  public void lowLatencyProfileTest() {
+    SparkConfProfiles.Result result =
+        SparkConfProfiles.apply(loadTestCrd(), SparkConfProfiles.Profile.LOW_LATENCY);
+    Map<String, String> sparkConf = result.getSparkCrd().getSpec().getSparkConf();
+
+    Assertions.assertEquals("100", sparkConf.get("spark.sql.shuffle.partitions"));
+    Assertions.assertEquals("0s", sparkConf.get("spark.locality.wait"));
+    Assertions.assertEquals(
+        "-XX:+UseG1GC -XX:MaxGCPauseMillis=100", sparkConf.get("spark.driver.extraJavaOptions"));
+  }
+}
@@ -16,10 +16,19 @@
 package org.gbif.stackable;
 
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -49,6 +58,177 @@ public class SparkCrdTest {
             });
   }
 
+  @Test
+  public void dynamicAllocationTest() {
+    SparkCrd sparkCrd = readAllSparkCrds(TEST_FILE).get(0);
+    SparkCrd.DynamicAllocation dynamicAllocation =
+        SparkCrd.DynamicAllocation.builder()
+            .minExecutors(2)
+            .maxExecutors(20)
+            .executorIdleTimeout("60s")
+            .build();
+
+    SparkCrd elastic = dynamicAllocation.applyTo(sparkCrd);
+
+    Assertions.assertEquals(2, elastic.getSpec().getExecutor().getInstances());
+    Assertions.assertEquals(
+        "true", elastic.getSpec().getSparkConf().get("spark.dynamicAllocation.enabled"));
+    Assertions.assertEquals(
+        "true",
+        elastic.getSpec().getSparkConf().get("spark.dynamicAllocation.shuffleTracking.enabled"));
+    Assertions.assertEquals(
+        "2",
+        elastic
+            .getSpec()
+            .getExecutor()
+            .getPodOverrides()
+            .getMetadata()
+            .getAnnotations()
+            .getTaskGroups()
+            .get(0)
+            .getMinMember());
+    Assertions.assertEquals(
+        dynamicAllocation.toBuilder().initialExecutors(2).build(),
+        SparkCrd.DynamicAllocation.fromSparkConf(elastic.getSpec().getSparkConf()));
+    Assertions.assertEquals(elastic, SparkCrd.fromYaml(elastic.toYamlString()));
+
+    // shuffle tracking not spelled out takes the default of this library
+    Map<String, String> sparkConf = new HashMap<>();
+    sparkConf.put("spark.dynamicAllocation.enabled", "true");
+    sparkConf.put("spark.dynamicAllocation.maxExecutors", "10");
+    SparkCrd.DynamicAllocation fromSparkConf =
+        SparkCrd.DynamicAllocation.fromSparkConf(sparkConf);
+    Assertions.assertTrue(fromSparkConf.isShuffleTracking());
+    Assertions.assertEquals(Collections.emptyList(), fromSparkConf.validate());
+    Assertions.assertEquals(
+        Collections.emptyList(),
+        SparkCrdValidator.DEFAULT.validate(
+            sparkCrd.toBuilder()
+                .spec(sparkCrd.getSpec().toBuilder().sparkConf(sparkConf).build())
+                .build()));
+
+    Assertions.assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            SparkCrd.DynamicAllocation.builder()
+                .minExecutors(5)
+                .maxExecutors(2)
+                .build()
+                .applyTo(sparkCrd));
+  }
+
+  @Test
+  public void affinityTest() {
+    SparkCrd sparkCrd = readAllSparkCrds(TEST_FILE).get(0);
+    SparkCrd.Affinity affinity =
+        SparkCrd.Affinity.preferNodesWithLabel(80, "gbif.org/hdfs-datanode", "true")
+            .and(
+                SparkCrd.Affinity.spreadPods(
+                    50, Collections.singletonMap("spark-app", "occurrence-table-build"), null));
+    SparkCrd placed =
+        sparkCrd.toBuilder()
+            .spec(
+                sparkCrd.getSpec().toBuilder()
+                    .executor(
+                        sparkCrd.getSpec().getExecutor().toBuilder().affinity(affinity).build())
+                    .build())
+            .build();
+
+    SparkCrd.Affinity.PodAffinityTerm spreadTerm =
+        affinity.getPodAntiAffinity().getPreferredDuringSchedulingIgnoredDuringExecution().get(0)
+            .getPodAffinityTerm();
+    Assertions.assertEquals(SparkCrd.Affinity.HOSTNAME_TOPOLOGY_KEY, spreadTerm.getTopologyKey());
+    Assertions.assertEquals(
+        "In",
+        affinity.getNodeAffinity().getPreferredDuringSchedulingIgnoredDuringExecution().get(0)
+            .getPreference().getMatchExpressions().get(0).getOperator());
+    Assertions.assertEquals(placed, SparkCrd.fromYaml(placed.toYamlString()));
+  }
+
+  @Test
+  public void scratchVolumesTest() {
+    SparkCrd sparkCrd = readAllSparkCrds(TEST_FILE).get(0);
+    SparkCrd scratch =
+        ScratchVolumes.withLocalDir(
+            sparkCrd, ScratchVolumes.memory(ScratchVolumes.DEFAULT_NAME, "4Gi"));
+
+    Assertions.assertEquals(
+        ScratchVolumes.DEFAULT_MOUNT_PATH, scratch.getSpec().getSparkConf().get("spark.local.dir"));
+    Assertions.assertEquals(
+        sparkCrd.getSpec().getVolumes().size() + 1, scratch.getSpec().getVolumes().size());
+    Assertions.assertTrue(
+        scratch.getSpec().getExecutor().getVolumeMounts().stream()
+            .anyMatch(mount -> ScratchVolumes.DEFAULT_NAME.equals(mount.getName())));
+    Assertions.assertTrue(
+        scratch.getSpec().getDriver().getVolumeMounts().stream()
+            .anyMatch(mount -> ScratchVolumes.DEFAULT_MOUNT_PATH.equals(mount.getMountPath())));
+    Assertions.assertEquals(scratch, SparkCrd.fromYaml(scratch.toYamlString()));
+
+    Assertions.assertThrows(
+        IllegalArgumentException.class,
+        () -> ScratchVolumes.withLocalDir(sparkCrd, ScratchVolumes.emptyDir("scratch", null)));
+  }
+
+  @Test
+  public void validatorTest() {
+    SparkCrd sparkCrd = readAllSparkCrds(TEST_FILE).get(0);
+    Assertions.assertEquals(Collections.emptyList(), SparkCrdValidator.DEFAULT.validate(sparkCrd));
+
+    SparkCrd.Spec spec = sparkCrd.getSpec();
+    SparkCrd.Resources resources =
+        SparkCrd.Resources.builder()
+            .cpu(SparkCrd.Resources.Cpu.builder().min("2").max("1").build())
+            .memory(SparkCrd.Resources.Memory.builder().limit("2GB").build())
+            .build();
+    SparkCrd invalid =
+        sparkCrd.toBuilder()
+            .metadata(sparkCrd.getMetadata().toBuilder().name("Occurrence_Table").build())
+            .spec(
+                spec.toBuilder()
+                    .mainApplicationFile(null)
+                    .driver(spec.getDriver().toBuilder().resources(resources).build())
+                    // occurrence-config is still mounted by the driver
+                    .volumes(spec.getVolumes().subList(0, 2))
+                    .build())
+            .build();
+
+    List<String> errors = SparkCrdValidator.DEFAULT.validate(invalid);
+    Assertions.assertEquals(5, errors.size(), errors.toString());
+    Assertions.assertThrows(
+        IllegalArgumentException.class, () -> SparkCrdValidator.DEFAULT.check(invalid));
+  }
+
+  @Test
+  @SneakyThrows
+  public void streamSparkCrdsTest(@TempDir Path directory) {
+    List<SparkCrd> expected = readAllSparkCrds(TEST_FILE);
+    Path file = directory.resolve("batch.yaml");
+    try (InputStream testFileInputStream =
+        SparkCrdTest.class.getClassLoader().getResourceAsStream(TEST_FILE)) {
+      Files.copy(testFileInputStream, file);
+    }
+    Files.createDirectories(directory.resolve("nested"));
+    Files.copy(file, directory.resolve("nested").resolve("batch.yml"));
+    Files.write(directory.resolve("ignored.txt"), "not yaml".getBytes(StandardCharsets.UTF_8));
+
+    try (Stream<SparkCrd> sparkCrds = ConfigUtils.streamSparkCrds(file)) {
+      Assertions.assertEquals(expected, sparkCrds.collect(Collectors.toList()));
+    }
+    try (Stream<SparkCrd> sparkCrds = ConfigUtils.streamSparkCrds(directory)) {
+      Assertions.assertEquals(2L * expected.size(), sparkCrds.count());
+    }
+    try (Stream<SparkCrd> sparkCrds = ConfigUtils.streamSparkCrds(directory, true)) {
+      Assertions.assertEquals(
+          2L * expected.size(), sparkCrds.filter(crd -> crd.getSpec() != null).count());
+    }
+
+    // files are opened lazily, a broken file after the first document is never parsed
+    Files.write(directory.resolve("z.yaml"), "spec: [".getBytes(StandardCharsets.UTF_8));
+    try (Stream<SparkCrd> sparkCrds = ConfigUtils.streamSparkCrds(directory)) {
+      Assertions.assertEquals(expected.get(0), sparkCrds.findFirst().orElse(null));
+    }
+  }
+
   @SneakyThrows
   public List<SparkCrd> readAllSparkCrds(String testFile) {
     try (InputStream testFileInputStream =
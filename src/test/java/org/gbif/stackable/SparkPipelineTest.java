@@ -0,0 +1,166 @@
+/*
+ * Copyright 2023 Global Biodiversity Information Facility (GBIF)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.stackable;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import lombok.SneakyThrows;
+
+import static org.gbif.stackable.K8StackableSparkControllerTest.sparkCrd;
+
+/** Runs a {@link SparkPipeline} against a {@link FakeSparkApiServer}. */
+public class SparkPipelineTest {
+
+  @SneakyThrows
+  private static void await(BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (!condition.getAsBoolean()) {
+      Assertions.assertTrue(System.currentTimeMillis() < deadline, "Condition not met in time");
+      Thread.sleep(20);
+    }
+  }
+
+  private static SparkPipeline.Step step(String name, int maxRetries, String... dependencies) {
+    SparkPipeline.Step.StepBuilder step =
+        SparkPipeline.Step.builder().name(name).sparkCrd(sparkCrd(name)).maxRetries(maxRetries);
+    for (String dependency : dependencies) {
+      step.dependsOn(dependency);
+    }
+    return step.build();
+  }
+
+  @Test
+  @SneakyThrows
+  public void pipelineTest() {
+    try (FakeSparkApiServer server = new FakeSparkApiServer()) {
+      K8StackableSparkController controller =
+          K8StackableSparkController.builder().kubeConfig(server.kubeConfig()).build();
+      SparkPipeline pipeline =
+          SparkPipeline.builder()
+              .controller(controller)
+              .step(step("build", 0))
+              .step(step("index", 1, "build"))
+              .step(step("export", 0, "build"))
+              .step(step("publish", 0, "index", "export"))
+              .maxConcurrency(2)
+              .retryBackoff(Duration.ofMillis(100))
+              .reconcileInterval(Duration.ofMillis(200))
+              .build();
+
+      try (StackableSparkWatcher watcher =
+          new StackableSparkWatcher(server.kubeConfig(), pipeline, null)) {
+        watcher.start(VirtualThreads.threadFactory("pipeline-test-"));
+        CompletableFuture<Map<String, SparkPipeline.Status>> result = pipeline.start();
+
+        await(() -> server.uid("build") != null);
+        Assertions.assertNull(server.uid("index"));
+        server.setPhase("build", "Succeeded");
+
+        // Independent branches run in parallel
+        await(() -> server.uid("index") != null && server.uid("export") != null);
+        Assertions.assertNull(server.uid("publish"));
+
+        // A failed step is retried
+        String indexUid = server.uid("index");
+        server.setPhase("index", "Failed");
+        await(() -> server.uid("index") != null && !indexUid.equals(server.uid("index")));
+
+        server.setPhase("index", "Succeeded");
+        server.setPhase("export", "Succeeded");
+        await(() -> server.uid("publish") != null);
+        server.setPhase("publish", "Succeeded");
+
+        Map<String, SparkPipeline.Status> status = result.get(10, TimeUnit.SECONDS);
+        Assertions.assertTrue(
+            status.values().stream().allMatch(s -> s == SparkPipeline.Status.SUCCEEDED));
+      }
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void reconcileTest() {
+    try (FakeSparkApiServer server = new FakeSparkApiServer()) {
+      K8StackableSparkController controller =
+          K8StackableSparkController.builder().kubeConfig(server.kubeConfig()).build();
+      SparkPipeline pipeline =
+          SparkPipeline.builder()
+              .controller(controller)
+              .step(step("build", 0))
+              .step(step("index", 0, "build"))
+              .reconcileInterval(Duration.ofMillis(100))
+              .build();
+
+      // No watcher: the phases are only read by the reconciliation
+      CompletableFuture<Map<String, SparkPipeline.Status>> result = pipeline.start();
+      await(() -> server.uid("build") != null);
+      server.setPhase("build", "Succeeded");
+      await(() -> server.uid("index") != null);
+      server.setPhase("index", "Failed");
+
+      Map<String, SparkPipeline.Status> status = result.get(10, TimeUnit.SECONDS);
+      Assertions.assertEquals(SparkPipeline.Status.SUCCEEDED, status.get("build"));
+      Assertions.assertEquals(SparkPipeline.Status.FAILED, status.get("index"));
+    }
+  }
+
+  @Test
+  public void timeoutTest() {
+    try (FakeSparkApiServer server = new FakeSparkApiServer()) {
+      K8StackableSparkController controller =
+          K8StackableSparkController.builder().kubeConfig(server.kubeConfig()).build();
+      SparkPipeline pipeline =
+          SparkPipeline.builder()
+              .controller(controller)
+              .step(step("build", 0))
+              .step(step("index", 0, "build"))
+              .timeout(Duration.ofMillis(500))
+              .build();
+
+      ExecutionException ex =
+          Assertions.assertThrows(
+              ExecutionException.class, () -> pipeline.start().get(10, TimeUnit.SECONDS));
+      Assertions.assertTrue(ex.getCause() instanceof TimeoutException);
+      Assertions.assertEquals(SparkPipeline.Status.RUNNING, pipeline.getStatus().get("build"));
+      Assertions.assertEquals(SparkPipeline.Status.CANCELLED, pipeline.getStatus().get("index"));
+    }
+  }
+
+  @Test
+  public void cycleTest() {
+    try (FakeSparkApiServer server = new FakeSparkApiServer()) {
+      K8StackableSparkController controller =
+          K8StackableSparkController.builder().kubeConfig(server.kubeConfig()).build();
+      Assertions.assertThrows(
+          IllegalArgumentException.class,
+          () ->
+              SparkPipeline.builder()
+                  .controller(controller)
+                  .step(step("a", 0, "b"))
+                  .step(step("b", 0, "a"))
+                  .build());
+    }
+  }
+}